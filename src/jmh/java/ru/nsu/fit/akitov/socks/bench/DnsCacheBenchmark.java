@@ -0,0 +1,73 @@
+package ru.nsu.fit.akitov.socks.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.nsu.fit.akitov.socks.dns.DomainNameEntry;
+import ru.nsu.fit.akitov.socks.dns.DomainNameStorage;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The DNS cache is shared by all reactors, so lookups and inserts are measured with several threads
+ * hitting it at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DnsCacheBenchmark {
+
+    private static final int NAMES = 10_000;
+
+    @Param({"10000", "1000"})
+    public int capacity;
+
+    private DomainNameStorage storage;
+    private String[] names;
+    private List<InetAddress> addresses;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        storage = new DomainNameStorage(capacity, Duration.ofSeconds(5), Duration.ofHours(1), Duration.ofSeconds(30),
+                0.8, Duration.ZERO, Duration.ofSeconds(30));
+        addresses = List.of(InetAddress.getByName("93.184.216.34"), InetAddress.getByName("2606:2800:220:1::"));
+        names = new String[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            names[i] = "host" + i + ".example.com";
+            storage.putDomainNameAddresses(names[i], addresses, 3600);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<DomainNameEntry> get() {
+        return storage.getDomainNameEntry(names[ThreadLocalRandom.current().nextInt(NAMES)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Optional<DomainNameEntry> mixedGet() {
+        return storage.getDomainNameEntry(names[ThreadLocalRandom.current().nextInt(NAMES)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedPut() {
+        storage.putDomainNameAddresses(names[ThreadLocalRandom.current().nextInt(NAMES)], addresses, 3600);
+    }
+
+}
@@ -0,0 +1,69 @@
+package ru.nsu.fit.akitov.socks.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.nsu.fit.akitov.socks.msg.HandshakeParser;
+import ru.nsu.fit.akitov.socks.msg.connection.ConnectionRequest;
+import ru.nsu.fit.akitov.socks.msg.exception.SocksException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a greeting followed by a CONNECT request, delivered in one segment or byte by byte. The
+ * parser is reused the way reactors reuse theirs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+
+    @Param({"IPv4", "IPv6", "DOMAIN"})
+    public String addressType;
+
+    private ByteBuffer handshake;
+    private ByteBuffer single;
+    private final HandshakeParser parser = new HandshakeParser();
+
+    @Setup
+    public void setUp() {
+        handshake = ByteBuffer.allocate(512);
+        handshake.put(new byte[]{0x05, 0x01, 0x00});
+        handshake.put(new byte[]{0x05, 0x01, 0x00});
+        switch (addressType) {
+            case "IPv4" -> handshake.put((byte) 0x01).put(new byte[]{93, (byte) 184, (byte) 216, 34});
+            case "IPv6" -> handshake.put((byte) 0x04).put(new byte[]{0x2a, 0x00, 0x14, 0x50, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x0e});
+            default -> {
+                byte[] name = "www.example.com".getBytes(StandardCharsets.US_ASCII);
+                handshake.put((byte) 0x03).put((byte) name.length).put(name);
+            }
+        }
+        handshake.putShort((short) 443);
+        handshake.flip();
+        single = ByteBuffer.allocate(1);
+    }
+
+    @Benchmark
+    public ConnectionRequest wholeSegment() throws SocksException {
+        ByteBuffer buffer = handshake.duplicate();
+        parser.reset();
+        parser.parse(buffer);
+        parser.parse(buffer);
+        return parser.request();
+    }
+
+    @Benchmark
+    public ConnectionRequest byteByByte() throws SocksException {
+        parser.reset();
+        for (int i = handshake.position(); i < handshake.limit(); i++) {
+            single.clear();
+            single.put(handshake.get(i)).flip();
+            parser.parse(single);
+        }
+        return parser.request();
+    }
+
+}
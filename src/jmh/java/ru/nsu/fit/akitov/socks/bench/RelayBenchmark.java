@@ -0,0 +1,128 @@
+package ru.nsu.fit.akitov.socks.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.nsu.fit.akitov.socks.ServerSettings;
+import ru.nsu.fit.akitov.socks.SocksProxyServer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through one tunnel of a proxy running in the benchmark JVM: the client writes a chunk,
+ * an echo server behind the proxy sends it back, and the client reads it in full. Chunks stay small
+ * enough to fit the loopback socket buffers, since the client only reads after it has written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+
+    @Param({"2048", "16384", "65536"})
+    public int bufferSize;
+
+    @Param({"1024", "16384", "65536"})
+    public int chunkSize;
+
+    private ServerSocket echoServer;
+    private Socket tunnel;
+    private OutputStream out;
+    private DataInputStream in;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() throws Exception {
+        echoServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        daemon(this::echo);
+
+        int proxyPort = freePort();
+        System.setProperty("socks.reactors", "1");
+        System.setProperty("socks.buffer.size", Integer.toString(bufferSize));
+        System.setProperty("socks.buffer.max", Integer.toString(Math.max(bufferSize, 65536)));
+        ServerSettings settings = ServerSettings.fromSystemProperties();
+        // threads started from a daemon thread are daemons too, so the proxy dies with the fork
+        daemon(new SocksProxyServer(proxyPort, settings));
+
+        tunnel = connect(proxyPort);
+        out = tunnel.getOutputStream();
+        in = new DataInputStream(tunnel.getInputStream());
+        byte[] address = InetAddress.getLoopbackAddress().getAddress();
+        int port = echoServer.getLocalPort();
+        out.write(new byte[]{0x05, 0x01, 0x00, 0x05, 0x01, 0x00, 0x01,
+                address[0], address[1], address[2], address[3], (byte) (port >> 8), (byte) port});
+        byte[] replies = new byte[2 + 10];
+        in.readFully(replies);
+        if (replies[3] != 0x00) {
+            throw new IllegalStateException("proxy refused the tunnel with status " + replies[3]);
+        }
+        chunk = new byte[chunkSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        tunnel.close();
+        echoServer.close();
+    }
+
+    @Benchmark
+    public byte[] roundTrip() throws IOException {
+        out.write(chunk);
+        in.readFully(chunk);
+        return chunk;
+    }
+
+    private Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket(InetAddress.getLoopbackAddress(), port);
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void echo() {
+        try {
+            while (true) {
+                Socket socket = echoServer.accept();
+                daemon(() -> {
+                    byte[] buffer = new byte[65536];
+                    try (socket) {
+                        InputStream socketIn = socket.getInputStream();
+                        OutputStream socketOut = socket.getOutputStream();
+                        int read;
+                        while ((read = socketIn.read(buffer)) >= 0) {
+                            socketOut.write(buffer, 0, read);
+                        }
+                    } catch (IOException ignore) {
+                    }
+                });
+            }
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void daemon(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+}
@@ -0,0 +1,48 @@
+package ru.nsu.fit.akitov.socks.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.nsu.fit.akitov.socks.SocksConfiguration;
+import ru.nsu.fit.akitov.socks.msg.Replies;
+import ru.nsu.fit.akitov.socks.msg.auth.AuthMethod;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyBenchmark {
+
+    private final ByteBuffer output = ByteBuffer.allocateDirect(64);
+    private final InetSocketAddress bound4 = new InetSocketAddress("10.0.0.1", 50123);
+    private final InetSocketAddress bound6 = new InetSocketAddress("fd00::1", 50123);
+
+    @Benchmark
+    public ByteBuffer methodChoice() {
+        return Replies.methodChoice(AuthMethod.NO_AUTH);
+    }
+
+    @Benchmark
+    public ByteBuffer failure() {
+        return Replies.failure(SocksConfiguration.STATUS_CONNECTION_REFUSED);
+    }
+
+    @Benchmark
+    public ByteBuffer successIPv4() {
+        output.clear();
+        Replies.putSuccess(output, bound4);
+        return output;
+    }
+
+    @Benchmark
+    public ByteBuffer successIPv6() {
+        output.clear();
+        Replies.putSuccess(output, bound6);
+        return output;
+    }
+
+}
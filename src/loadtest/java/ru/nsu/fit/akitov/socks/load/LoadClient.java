@@ -0,0 +1,211 @@
+package ru.nsu.fit.akitov.socks.load;
+
+import ru.nsu.fit.akitov.socks.metrics.Histogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One simulated SOCKS5 client, a state machine on the selector of a {@link LoadDriver} rather than a
+ * thread of its own, so the number of clients isn't bounded by the threads the generator can run. It
+ * sends the greeting and the CONNECT request in one segment and counts the handshake as done once
+ * the granted reply is in.
+ */
+class LoadClient {
+
+    private static final String HOST_NAME = "upstream.load.test";
+    // the method selection followed by the connect reply
+    private static final int IPV4_REPLY_LENGTH = 2 + 4 + 4 + 2;
+    private static final int IPV6_REPLY_LENGTH = 2 + 4 + 16 + 2;
+
+    private final Workload workload;
+    private final InetSocketAddress proxy;
+    private final ByteBuffer handshake;
+    private final ByteBuffer message;
+    private final ByteBuffer chunk;
+    private final ByteBuffer in;
+    private final long deadlineNanos;
+    private final Results results;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer out;
+    private boolean established;
+    private long startedAt;
+
+    LoadClient(Workload workload, InetSocketAddress proxy, int port, ByteBuffer message, ByteBuffer chunk,
+               long deadlineNanos, Results results) {
+        this.workload = workload;
+        this.proxy = proxy;
+        this.message = message;
+        this.chunk = chunk;
+        this.deadlineNanos = deadlineNanos;
+        this.results = results;
+        handshake = handshake(port);
+        in = ByteBuffer.allocate(Math.max(IPV6_REPLY_LENGTH, message.capacity()));
+    }
+
+    void open(Selector selector) {
+        startedAt = System.nanoTime();
+        established = false;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(proxy)) {
+                connected();
+            }
+        } catch (IOException e) {
+            // most likely out of file descriptors, retrying right away wouldn't help
+            results.failures.increment();
+            close();
+        }
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    connected();
+                }
+                return;
+            }
+            if (key.isWritable()) {
+                write();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            fail(key.selector());
+        }
+    }
+
+    void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+    private void connected() throws IOException {
+        in.clear().limit(IPV4_REPLY_LENGTH);
+        send(handshake.duplicate());
+    }
+
+    private void send(ByteBuffer buffer) throws IOException {
+        out = buffer;
+        channel.write(out);
+        key.interestOps(out.hasRemaining() ? SelectionKey.OP_WRITE | SelectionKey.OP_READ : SelectionKey.OP_READ);
+    }
+
+    private void write() throws IOException {
+        if (established && workload == Workload.BULK) {
+            if (System.nanoTime() >= deadlineNanos) {
+                close();
+                return;
+            }
+            // one write per wakeup, so a single stream doesn't keep the other clients waiting
+            results.bytes.add(channel.write(chunk.duplicate()));
+            return;
+        }
+        channel.write(out);
+        if (!out.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(in) < 0) {
+            throw new IOException("closed by the proxy");
+        }
+        if (!established) {
+            readReply();
+        } else if (!in.hasRemaining()) {
+            exchanged();
+        }
+    }
+
+    private void readReply() throws IOException {
+        if (in.position() > 5 && in.get(5) == 0x04 && in.limit() != IPV6_REPLY_LENGTH) {
+            in.limit(IPV6_REPLY_LENGTH);
+        }
+        if (in.hasRemaining()) {
+            return;
+        }
+        if (in.get(1) != 0x00 || in.get(3) != 0x00) {
+            throw new IOException("proxy refused with status " + in.get(3));
+        }
+        established = true;
+        results.handshakeLatency.recordNanos(System.nanoTime() - startedAt);
+        results.connects.increment();
+        if (workload == Workload.BULK) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            exchange();
+        }
+    }
+
+    private void exchange() throws IOException {
+        startedAt = System.nanoTime();
+        in.clear().limit(message.capacity());
+        send(message.duplicate());
+    }
+
+    private void exchanged() throws IOException {
+        results.exchanges.increment();
+        results.bytes.add(2L * message.capacity());
+        if (workload == Workload.REQUEST_RESPONSE) {
+            results.exchangeLatency.recordNanos(System.nanoTime() - startedAt);
+        }
+        if (System.nanoTime() >= deadlineNanos) {
+            close();
+        } else if (workload == Workload.STORM) {
+            close();
+            open(key.selector());
+        } else {
+            exchange();
+        }
+    }
+
+    // a storm client goes on with a new tunnel, the others give up like a blocking client would
+    private void fail(Selector selector) {
+        results.failures.increment();
+        close();
+        if (workload == Workload.STORM && System.nanoTime() < deadlineNanos) {
+            open(selector);
+        }
+    }
+
+    private static ByteBuffer handshake(int port) {
+        byte[] name = HOST_NAME.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer handshake = ByteBuffer.allocate(3 + 5 + name.length + 2);
+        handshake.put((byte) 0x05).put((byte) 0x01).put((byte) 0x00);
+        handshake.put((byte) 0x05).put((byte) 0x01).put((byte) 0x00).put((byte) 0x03);
+        handshake.put((byte) name.length).put(name).putShort((short) port);
+        return handshake.flip().asReadOnlyBuffer();
+    }
+
+    static class Results {
+
+        final LongAdder connects = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder exchanges = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final Histogram handshakeLatency = new Histogram();
+        final Histogram exchangeLatency = new Histogram();
+
+    }
+
+}
@@ -0,0 +1,59 @@
+package ru.nsu.fit.akitov.socks.load;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A selector thread driving its share of the load clients until the workload's deadline, then
+ * closing whatever tunnels they still have open.
+ */
+class LoadDriver implements Runnable {
+
+    private static final long SELECT_TIMEOUT_MILLIS = 100;
+
+    private final Selector selector;
+    private final List<LoadClient> clients = new ArrayList<>();
+    private final long deadlineNanos;
+
+    LoadDriver(long deadlineNanos) throws IOException {
+        this.deadlineNanos = deadlineNanos;
+        selector = Selector.open();
+    }
+
+    void add(LoadClient client) {
+        clients.add(client);
+    }
+
+    @Override
+    public void run() {
+        try (selector) {
+            for (LoadClient client : clients) {
+                client.open(selector);
+            }
+            while (System.nanoTime() < deadlineNanos) {
+                selector.select(Math.min(SELECT_TIMEOUT_MILLIS,
+                        TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()) + 1));
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid()) {
+                        ((LoadClient) key.attachment()).handle(key);
+                    }
+                }
+            }
+            for (LoadClient client : clients) {
+                client.close();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("load driver stopped: " + e.getMessage());
+        }
+    }
+
+}
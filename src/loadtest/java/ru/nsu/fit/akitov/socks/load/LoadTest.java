@@ -0,0 +1,132 @@
+package ru.nsu.fit.akitov.socks.load;
+
+import ru.nsu.fit.akitov.socks.metrics.Histogram;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * End-to-end load test of the proxy on one machine. It starts a stub DNS server and an echo/sink
+ * upstream on loopback, runs the proxy as a child JVM, and drives it with concurrent clients through
+ * each workload in turn, printing connection rate, handshake and exchange latency percentiles,
+ * relay throughput, and the proxy's CPU usage and resident memory.
+ * <p>
+ * Clients are non-blocking and share a few selector threads, so even 100k of them measure the proxy
+ * rather than how many threads the load generator can schedule.
+ * <p>
+ * Settings are system properties: {@code load.clients}, {@code load.threads}, {@code load.duration}
+ * (seconds), {@code load.workloads} (comma-separated names of {@link Workload}), {@code load.message}
+ * and {@code load.chunk} (bytes), and {@code load.proxyJvmOptions}; {@code socks.*} properties
+ * configure the proxy.
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        int clients = Integer.getInteger("load.clients", 1000);
+        int threads = Integer.getInteger("load.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        long durationSeconds = Long.getLong("load.duration", 30);
+        int messageSize = Integer.getInteger("load.message", 128);
+        int chunkSize = Integer.getInteger("load.chunk", 64 * 1024);
+        List<Workload> workloads = new ArrayList<>();
+        for (String name : System.getProperty("load.workloads", "storm,bulk,request_response").split(",")) {
+            workloads.add(Workload.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+        }
+        List<String> proxyJvmOptions = new ArrayList<>();
+        String options = System.getProperty("load.proxyJvmOptions", "");
+        if (!options.isBlank()) {
+            proxyJvmOptions.addAll(List.of(options.trim().split("\\s+")));
+        }
+
+        StubDnsServer dns = new StubDnsServer();
+        UpstreamServer upstream = new UpstreamServer();
+        daemon(dns, "stub-dns");
+        daemon(upstream, "upstream");
+        int proxyPort = freePort();
+        ProxyProcess proxy = new ProxyProcess(proxyPort, dns.getPort(), proxyJvmOptions);
+        try {
+            proxy.awaitListening();
+            InetSocketAddress proxyAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyPort);
+            System.out.println(clients + " clients, " + durationSeconds + " s per workload, engine "
+                    + System.getProperty("socks.engine", "nio"));
+            for (Workload workload : workloads) {
+                run(workload, clients, threads, durationSeconds, proxyAddress, upstream, messageSize, chunkSize,
+                        proxy);
+            }
+        } finally {
+            proxy.stop();
+            upstream.close();
+        }
+    }
+
+    private static void run(Workload workload, int clients, int threads, long durationSeconds,
+                            InetSocketAddress proxyAddress, UpstreamServer upstream, int messageSize, int chunkSize,
+                            ProxyProcess proxy) throws IOException, InterruptedException {
+        LoadClient.Results results = new LoadClient.Results();
+        // every client only reads from these, through buffers of its own
+        ByteBuffer message = ByteBuffer.allocateDirect(messageSize).asReadOnlyBuffer();
+        ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize).asReadOnlyBuffer();
+        int port = workload == Workload.BULK ? upstream.getSinkPort() : upstream.getEchoPort();
+        long cpuBefore = proxy.cpuMillis();
+        long start = System.nanoTime();
+        long deadline = start + durationSeconds * 1_000_000_000L;
+        LoadDriver[] drivers = new LoadDriver[threads];
+        for (int i = 0; i < threads; i++) {
+            drivers[i] = new LoadDriver(deadline);
+        }
+        for (int i = 0; i < clients; i++) {
+            drivers[i % threads].add(new LoadClient(workload, proxyAddress, port, message, chunk, deadline, results));
+        }
+        Thread[] running = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            running[i] = new Thread(drivers[i], "load-driver-" + i);
+            running[i].start();
+        }
+        long peakRss = 0;
+        for (Thread thread : running) {
+            while (thread.isAlive()) {
+                peakRss = Math.max(peakRss, proxy.rssKilobytes());
+                thread.join(500);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double cpuSeconds = (proxy.cpuMillis() - cpuBefore) / 1000.0;
+
+        System.out.println();
+        System.out.println("== " + workload.name().toLowerCase(Locale.ROOT));
+        System.out.printf(Locale.ROOT, "connects:   %.0f/s (%d total, %d failures)%n",
+                results.connects.sum() / seconds, results.connects.sum(), results.failures.sum());
+        System.out.println("handshake:  " + summary(results.handshakeLatency));
+        if (results.exchangeLatency.count() > 0) {
+            System.out.println("exchange:   " + summary(results.exchangeLatency));
+        }
+        System.out.printf(Locale.ROOT, "exchanges:  %.0f/s%n", results.exchanges.sum() / seconds);
+        System.out.printf(Locale.ROOT, "relay:      %.3f Gb/s%n", results.bytes.sum() * 8 / seconds / 1e9);
+        System.out.printf(Locale.ROOT, "proxy cpu:  %.1f%% of one core%n", cpuSeconds / seconds * 100);
+        System.out.printf(Locale.ROOT, "proxy rss:  %d MiB peak, %.1f KiB per client%n",
+                peakRss / 1024, (double) peakRss / clients);
+    }
+
+    private static String summary(Histogram histogram) {
+        return "p50 " + histogram.percentileMicros(50) + " us, p99 " + histogram.percentileMicros(99) + " us, p99.9 "
+                + histogram.percentileMicros(99.9) + " us (" + histogram.count() + " samples)";
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+}
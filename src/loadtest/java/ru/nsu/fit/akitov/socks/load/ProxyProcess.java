@@ -0,0 +1,79 @@
+package ru.nsu.fit.akitov.socks.load;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The proxy under test, run as a separate JVM so that its CPU time and resident memory can be read
+ * from /proc without the load clients mixed in. All {@code socks.*} properties of this JVM are passed
+ * on to it.
+ */
+class ProxyProcess {
+
+    // USER_HZ, which is 100 on every mainstream Linux build
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+    private final Process process;
+    private final int port;
+
+    ProxyProcess(int port, int dnsPort, List<String> jvmOptions) throws IOException {
+        this.port = port;
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("socks.") && !name.equals("socks.dns.servers")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-Dsocks.dns.servers=127.0.0.1:" + dnsPort);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("ru.nsu.fit.akitov.socks.Main");
+        command.add(Integer.toString(port));
+        process = new ProcessBuilder(command).inheritIO().start();
+    }
+
+    void awaitListening() throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try (Socket ignored = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                return;
+            } catch (IOException e) {
+                if (attempt == 100 || !process.isAlive()) {
+                    throw new IOException("proxy didn't start listening on port " + port, e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * User plus system CPU time of the proxy in milliseconds.
+     */
+    long cpuMillis() throws IOException {
+        String stat = Files.readString(Path.of("/proc", Long.toString(process.pid()), "stat"));
+        // the command name may contain spaces, the fields after it don't
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        return ticks * 1000 / CLOCK_TICKS_PER_SECOND;
+    }
+
+    long rssKilobytes() throws IOException {
+        for (String line : Files.readAllLines(Path.of("/proc", Long.toString(process.pid()), "status"))) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        return 0;
+    }
+
+    void stop() {
+        process.destroy();
+    }
+
+}
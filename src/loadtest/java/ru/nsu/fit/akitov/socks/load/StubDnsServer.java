@@ -0,0 +1,62 @@
+package ru.nsu.fit.akitov.socks.load;
+
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * DNS server on loopback that answers every A query with 127.0.0.1 and every other query with an
+ * empty answer, so that domain requests work without a network.
+ */
+class StubDnsServer implements Runnable {
+
+    private static final long TTL_SECONDS = 300;
+
+    private final DatagramSocket socket;
+
+    StubDnsServer() throws IOException {
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[512];
+        InetAddress answer = InetAddress.getLoopbackAddress();
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                Message query = new Message(Arrays.copyOf(buffer, packet.getLength()));
+                Record question = query.getQuestion();
+                Message response = new Message(query.getHeader().getID());
+                response.getHeader().setFlag(Flags.QR);
+                response.getHeader().setFlag(Flags.RA);
+                response.addRecord(question, Section.QUESTION);
+                if (question.getType() == Type.A) {
+                    response.addRecord(new ARecord(question.getName(), DClass.IN, TTL_SECONDS, answer), Section.ANSWER);
+                }
+                byte[] wire = response.toWire();
+                socket.send(new DatagramPacket(wire, wire.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.err.println("stub dns: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package ru.nsu.fit.akitov.socks.load;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+
+/**
+ * Destination the load clients talk to through the proxy: an echo port for request/response traffic
+ * and a sink port that discards bulk streams. A single selector thread serves both, reading into one
+ * shared buffer; only an echo connection that can't take its bytes back right away gets its own.
+ */
+class UpstreamServer implements Runnable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final ServerSocketChannel echo;
+    private final ServerSocketChannel sink;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    UpstreamServer() throws IOException {
+        selector = Selector.open();
+        echo = listen();
+        sink = listen();
+    }
+
+    int getEchoPort() {
+        return echo.socket().getLocalPort();
+    }
+
+    int getSinkPort() {
+        return sink.socket().getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.select() >= 0) {
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        handle(key);
+                    } catch (IOException e) {
+                        key.channel().close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // stopped
+        }
+    }
+
+    private ServerSocketChannel listen() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+        return channel;
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, key.channel() == echo);
+            }
+            return;
+        }
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (key.isWritable()) {
+            ByteBuffer pending = (ByteBuffer) key.attachment();
+            channel.write(pending);
+            if (!pending.hasRemaining()) {
+                key.attach(true);
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            return;
+        }
+        buffer.clear();
+        if (channel.read(buffer) < 0) {
+            channel.close();
+            return;
+        }
+        if (!Boolean.TRUE.equals(key.attachment())) {
+            return;
+        }
+        buffer.flip();
+        channel.write(buffer);
+        if (buffer.hasRemaining()) {
+            ByteBuffer pending = ByteBuffer.allocate(buffer.remaining());
+            pending.put(buffer).flip();
+            key.attach(pending);
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    void close() throws IOException {
+        selector.close();
+        echo.close();
+        sink.close();
+    }
+
+}
@@ -0,0 +1,16 @@
+package ru.nsu.fit.akitov.socks.load;
+
+public enum Workload {
+    /**
+     * Every client opens a tunnel by name, exchanges one small message and closes it, over and over.
+     */
+    STORM,
+    /**
+     * Every client keeps one tunnel and streams bulk data into the sink.
+     */
+    BULK,
+    /**
+     * Every client keeps one tunnel and does small request/response exchanges with the echo server.
+     */
+    REQUEST_RESPONSE
+}
@@ -0,0 +1,156 @@
+package ru.nsu.fit.akitov.socks;
+
+import lombok.extern.log4j.Log4j2;
+import ru.nsu.fit.akitov.socks.limit.AdmissionControl;
+import ru.nsu.fit.akitov.socks.metrics.ProxyMetrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A listening socket registered on some selector, with admission control applied to what it accepts.
+ * Accepted connections are handed to the given consumer on the selector's thread.
+ */
+@Log4j2
+public class Acceptor {
+
+    private final ServerSocketChannel channel;
+    private final SelectionKey key;
+    private final AdmissionControl admissionControl;
+    private final ProxyMetrics metrics;
+    private final int batch;
+    private final Consumer<SocketChannel> handoff;
+    // set by whichever thread asks for them, applied on the selector's thread
+    private final AtomicBoolean resumeRequested = new AtomicBoolean();
+    private final AtomicBoolean closeRequested = new AtomicBoolean();
+
+    public Acceptor(ServerSocketChannel channel, Selector selector, AdmissionControl admissionControl,
+                    ProxyMetrics metrics, int batch, Consumer<SocketChannel> handoff) throws IOException {
+        this.channel = channel;
+        this.admissionControl = admissionControl;
+        this.metrics = metrics;
+        this.batch = batch;
+        this.handoff = handoff;
+        key = channel.register(selector, SelectionKey.OP_ACCEPT, this);
+    }
+
+    /**
+     * Opens a non-blocking listening socket. With {@code reusePort}, several of them can be bound to the
+     * same port and the kernel spreads incoming connections across them.
+     */
+    public static ServerSocketChannel listen(int port, int backlog, boolean reusePort,
+                                             SocketOptions socketOptions) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            socketOptions.applyToListener(channel);
+            channel.bind(new InetSocketAddress(port), backlog);
+            return channel;
+        } catch (IOException | UnsupportedOperationException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes over a listening socket the process was started with on its standard input, the way
+     * inetd and systemd socket activation pass it. The socket outlives the process, so a restart
+     * neither refuses nor loses the connections queued meanwhile.
+     */
+    public static ServerSocketChannel inherit() throws IOException {
+        if (!(System.inheritedChannel() instanceof ServerSocketChannel channel)) {
+            throw new IOException("no listening socket was inherited");
+        }
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    public boolean owns(SelectionKey key) {
+        return key.attachment() == this;
+    }
+
+    // a burst of connections is taken in batches, so that a connect storm can't keep the selector busy for long
+    public void accept() {
+        for (int i = 0; i < batch; i++) {
+            if (admissionControl.pauseIfFull()) {
+                // new connections wait in the listen backlog until tunnels close
+                log.error("connection limit reached, pausing accept");
+                key.interestOps(0);
+                metrics.acceptPaused();
+                return;
+            }
+            SocketChannel accepted;
+            try {
+                accepted = channel.accept();
+            } catch (IOException e) {
+                log.error(e.getMessage());
+                return;
+            }
+            if (accepted == null) {
+                return;
+            }
+            metrics.accepted();
+            InetAddress client = accepted.socket().getInetAddress();
+            AdmissionControl.Decision decision = admissionControl.admit(client);
+            metrics.admission(decision);
+            if (decision != AdmissionControl.Decision.ADMITTED) {
+                refuse(accepted);
+                continue;
+            }
+            handoff.accept(accepted);
+        }
+    }
+
+    public void requestResume() {
+        resumeRequested.set(true);
+        key.selector().wakeup();
+    }
+
+    public void requestClose() {
+        closeRequested.set(true);
+        key.selector().wakeup();
+    }
+
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    /**
+     * Applies pending resume and close requests, to be called on every turn of the selector loop.
+     */
+    public void applyRequests() {
+        if (closeRequested.getAndSet(false)) {
+            log.info("closing listening socket " + channel.socket().getLocalSocketAddress());
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error(e.getMessage());
+            }
+        }
+        if (resumeRequested.getAndSet(false) && key.isValid()) {
+            log.info("resuming accept");
+            key.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    // a reset costs less than a handshake and leaves no connection in TIME_WAIT behind
+    private static void refuse(SocketChannel channel) {
+        try (channel) {
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
+
+}
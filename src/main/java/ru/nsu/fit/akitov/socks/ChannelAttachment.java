@@ -2,19 +2,38 @@ package ru.nsu.fit.akitov.socks;
 
 import lombok.Builder;
 import lombok.Data;
+import ru.nsu.fit.akitov.socks.accesslog.TunnelRecord;
+import ru.nsu.fit.akitov.socks.limit.TokenBucket;
+import ru.nsu.fit.akitov.socks.msg.HandshakeParser;
 import ru.nsu.fit.akitov.socks.msg.connection.ConnectionRequest;
+import ru.nsu.fit.akitov.socks.timer.Timeout;
+import ru.nsu.fit.akitov.socks.udp.UdpAssociation;
+import ru.nsu.fit.akitov.socks.upstream.ConnectRace;
 
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.util.List;
 
 @Data
 @Builder
 public class ChannelAttachment {
     private ChannelState state;
+    private boolean upstream;
     private ByteBuffer inputBuffer;
     private ByteBuffer outputBuffer;
+    private ByteBuffer reply;
     private SelectionKey destination;
+    private HandshakeParser handshake;
     private ConnectionRequest request;
-    private InetAddress destinationAddress;
+    private List<InetAddress> destinationAddresses;
+    private ConnectRace connectRace;
+    private UdpAssociation association;
+    private SelectionKey listener;
+    private boolean readSinceSweep;
+    private long lastActivity;
+    private Timeout timeout;
+    private TunnelRecord record;
+    private TokenBucket[] buckets;
+    private Timeout throttle;
 }
@@ -0,0 +1,57 @@
+package ru.nsu.fit.akitov.socks;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.time.Duration;
+import java.util.function.IntSupplier;
+
+/**
+ * Deadline of a drain shared by everybody who asks for it, so that a signal arriving while a drain
+ * requested over JMX is under way waits for the same deadline rather than starting over.
+ */
+@Log4j2
+public class Drain {
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private long deadline;
+    private boolean started;
+
+    /**
+     * Returns {@code true} to the first caller only, which is the one to stop accepting.
+     */
+    public synchronized boolean start(Duration timeout) {
+        if (started) {
+            return false;
+        }
+        started = true;
+        deadline = System.nanoTime() + timeout.toNanos();
+        return true;
+    }
+
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Waits until nothing is open any more or the deadline has passed.
+     */
+    public void await(IntSupplier open) {
+        long until;
+        synchronized (this) {
+            until = deadline;
+        }
+        try {
+            while (open.getAsInt() > 0 && System.nanoTime() - until < 0) {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int left = open.getAsInt();
+        if (left > 0) {
+            log.error("drain deadline passed with " + left + " connections still open");
+        }
+    }
+
+}
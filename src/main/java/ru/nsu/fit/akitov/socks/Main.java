@@ -1,5 +1,7 @@
 package ru.nsu.fit.akitov.socks;
 
+import ru.nsu.fit.akitov.socks.blocking.BlockingProxyServer;
+
 public class Main {
 
     public static void main(String[] args) {
@@ -9,7 +11,12 @@ public class Main {
         }
         try {
             int port = Integer.parseInt(args[0]);
-            new SocksProxyServer(port).run();
+            ServerSettings settings = ServerSettings.fromSystemProperties();
+            ProxyServer server = settings.getEngine() == ServerSettings.Engine.THREADS
+                    ? new BlockingProxyServer(port, settings)
+                    : new SocksProxyServer(port, settings);
+            new ProxyControl(server, settings.getDrainTimeout()).install();
+            server.run();
         } catch (NumberFormatException e) {
             System.out.println("Error: invalid port");
         }
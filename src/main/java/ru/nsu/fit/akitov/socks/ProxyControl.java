@@ -0,0 +1,42 @@
+package ru.nsu.fit.akitov.socks;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+
+/**
+ * Ways to drain the proxy before it exits: a termination signal, on which the JVM runs a shutdown
+ * hook, and the {@code drain} operation over JMX.
+ */
+@Log4j2
+@RequiredArgsConstructor
+public class ProxyControl implements ProxyControlMXBean {
+
+    private static final String OBJECT_NAME = "ru.nsu.fit.akitov.socks:type=Control";
+
+    private final ProxyServer server;
+    private final Duration drainTimeout;
+
+    public void install() {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.drain(drainTimeout), "drain-on-exit"));
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.error("couldn't register control mbean: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void drain() {
+        // the caller gets its answer right away, exiting runs the shutdown hook, which finds nothing left to drain
+        new Thread(() -> {
+            server.drain(drainTimeout);
+            System.exit(0);
+        }, "drain").start();
+    }
+
+}
@@ -0,0 +1,13 @@
+package ru.nsu.fit.akitov.socks;
+
+/**
+ * JMX operations on a running proxy.
+ */
+public interface ProxyControlMXBean {
+
+    /**
+     * Drains the proxy in the background and exits once it is done.
+     */
+    void drain();
+
+}
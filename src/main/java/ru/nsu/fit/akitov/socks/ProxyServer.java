@@ -0,0 +1,16 @@
+package ru.nsu.fit.akitov.socks;
+
+import java.time.Duration;
+
+/**
+ * A proxy engine: it serves from {@link #run()} until the process ends, and can be drained first.
+ */
+public interface ProxyServer extends Runnable {
+
+    /**
+     * Stops accepting connections and waits until the open ones have closed or the timeout has
+     * passed. Safe to call from any thread, and more than once.
+     */
+    void drain(Duration timeout);
+
+}
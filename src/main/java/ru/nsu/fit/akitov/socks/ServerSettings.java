@@ -0,0 +1,169 @@
+package ru.nsu.fit.akitov.socks;
+
+import lombok.Builder;
+import lombok.Getter;
+import org.xbill.DNS.ResolverConfig;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Getter
+@Builder
+public class ServerSettings {
+
+    public enum Engine {
+        NIO,
+        THREADS
+    }
+
+    private final Engine engine;
+    private final int reactors;
+    private final int bufferSize;
+    private final int maxBufferSize;
+    private final long bufferMemoryLimit;
+    private final List<InetSocketAddress> dnsServers;
+    private final long dnsTimeoutMillis;
+    private final int dnsAttempts;
+    private final int dnsCacheSize;
+    private final Duration dnsCacheMinTtl;
+    private final Duration dnsCacheMaxTtl;
+    private final Duration dnsCacheNegativeTtl;
+    private final double dnsCacheRefreshFraction;
+    private final Duration dnsCacheStaleGrace;
+    private final Map<InetSocketAddress, Integer> warmDestinations;
+    private final Duration warmMaxIdle;
+    private final int warmAutoThreshold;
+    private final int warmAutoSize;
+    private final long connectTimeoutMillis;
+    private final long connectAttemptDelayMillis;
+    private final long handshakeTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final Path credentialsFile;
+    private final Duration udpNatTimeout;
+    private final long bindTimeoutMillis;
+    private final int metricsPort;
+    private final Path accessLogFile;
+    private final long rateGlobal;
+    private final long rateClient;
+    private final long rateUser;
+    private final Duration rateBurst;
+    private final int acceptBatch;
+    private final int backlog;
+    private final boolean inheritChannel;
+    private final boolean reusePort;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final Duration drainTimeout;
+    private final int maxConnections;
+    private final int maxConnectionsPerClient;
+    private final int maxPendingLookups;
+    private final int maxPendingConnects;
+
+    public static ServerSettings fromSystemProperties() {
+        return ServerSettings.builder()
+                .engine(Engine.valueOf(System.getProperty("socks.engine", "nio").toUpperCase()))
+                .reactors(Integer.getInteger("socks.reactors", Runtime.getRuntime().availableProcessors()))
+                .bufferSize(Integer.getInteger("socks.buffer.size", 2048))
+                .maxBufferSize(Integer.getInteger("socks.buffer.max", 65536))
+                .bufferMemoryLimit(Long.getLong("socks.buffer.memory", 256L * 1024 * 1024))
+                .dnsServers(dnsServers(System.getProperty("socks.dns.servers")))
+                .dnsTimeoutMillis(Long.getLong("socks.dns.timeout", 1000))
+                .dnsAttempts(Integer.getInteger("socks.dns.attempts", 3))
+                .dnsCacheSize(Integer.getInteger("socks.dns.cache.size", 10000))
+                .dnsCacheMinTtl(Duration.ofSeconds(Long.getLong("socks.dns.cache.minTtl", 5)))
+                .dnsCacheMaxTtl(Duration.ofSeconds(Long.getLong("socks.dns.cache.maxTtl", 3600)))
+                .dnsCacheNegativeTtl(Duration.ofSeconds(Long.getLong("socks.dns.cache.negativeTtl", 30)))
+                .dnsCacheRefreshFraction(Double.parseDouble(System.getProperty("socks.dns.cache.refreshAt", "0.8")))
+                .dnsCacheStaleGrace(Duration.ofSeconds(Long.getLong("socks.dns.cache.staleGrace", 0)))
+                .warmDestinations(warmDestinations(System.getProperty("socks.warm.destinations")))
+                .warmMaxIdle(Duration.ofSeconds(Long.getLong("socks.warm.maxIdle", 30)))
+                .warmAutoThreshold(Integer.getInteger("socks.warm.autoThreshold", 0))
+                .warmAutoSize(Integer.getInteger("socks.warm.autoSize", 2))
+                .connectTimeoutMillis(Long.getLong("socks.connect.timeout", 10_000))
+                .connectAttemptDelayMillis(Long.getLong("socks.connect.attemptDelay", 250))
+                .handshakeTimeoutMillis(Long.getLong("socks.timeout.handshake", 10_000))
+                .idleTimeoutMillis(Long.getLong("socks.timeout.idle", 300_000))
+                .credentialsFile(optionalPath(System.getProperty("socks.auth.file")))
+                .udpNatTimeout(Duration.ofSeconds(Long.getLong("socks.udp.natTimeout", 60)))
+                .bindTimeoutMillis(Long.getLong("socks.bind.timeout", 60_000))
+                .metricsPort(Integer.getInteger("socks.metrics.port", 0))
+                .accessLogFile(optionalPath(System.getProperty("socks.accessLog.file")))
+                .rateGlobal(Long.getLong("socks.rate.global", 0))
+                .rateClient(Long.getLong("socks.rate.client", 0))
+                .rateUser(Long.getLong("socks.rate.user", 0))
+                .rateBurst(Duration.ofMillis(Long.getLong("socks.rate.burst", 1000)))
+                .acceptBatch(Integer.getInteger("socks.accept.batch", 64))
+                .backlog(Integer.getInteger("socks.listen.backlog", 0))
+                .reusePort(Boolean.getBoolean("socks.listen.reusePort"))
+                .inheritChannel(Boolean.getBoolean("socks.listen.inherited"))
+                .tcpNoDelay(Boolean.getBoolean("socks.socket.noDelay"))
+                .keepAlive(Boolean.getBoolean("socks.socket.keepAlive"))
+                .receiveBufferSize(Integer.getInteger("socks.socket.receiveBuffer", 0))
+                .sendBufferSize(Integer.getInteger("socks.socket.sendBuffer", 0))
+                .drainTimeout(Duration.ofMillis(Long.getLong("socks.drain.timeout", 30_000)))
+                .maxConnections(Integer.getInteger("socks.limit.connections", 0))
+                .maxConnectionsPerClient(Integer.getInteger("socks.limit.connectionsPerClient", 0))
+                .maxPendingLookups(Integer.getInteger("socks.limit.pendingLookups", 0))
+                .maxPendingConnects(Integer.getInteger("socks.limit.pendingConnects", 0))
+                .build();
+    }
+
+    private static Path optionalPath(String property) {
+        if (property == null || property.isBlank()) {
+            return null;
+        }
+        return Path.of(property);
+    }
+
+    private static Map<InetSocketAddress, Integer> warmDestinations(String property) {
+        Map<InetSocketAddress, Integer> destinations = new HashMap<>();
+        if (property == null || property.isBlank()) {
+            return destinations;
+        }
+        for (String destination : property.split(",")) {
+            String[] parts = destination.trim().split("=");
+            int size = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            destinations.put(unresolvedAddress(parts[0], 80), size);
+        }
+        return destinations;
+    }
+
+    private static List<InetSocketAddress> dnsServers(String property) {
+        if (property == null || property.isBlank()) {
+            return ResolverConfig.getCurrentConfig().servers();
+        }
+        List<InetSocketAddress> servers = new ArrayList<>();
+        for (String server : property.split(",")) {
+            servers.add(socketAddress(server.trim(), 53));
+        }
+        return servers;
+    }
+
+    private static InetSocketAddress socketAddress(String value, int defaultPort) {
+        InetSocketAddress address = unresolvedAddress(value, defaultPort);
+        return new InetSocketAddress(address.getHostString(), address.getPort());
+    }
+
+    // warm destinations are resolved by the reactors as they go, so they don't stick to the address a name had at startup
+    private static InetSocketAddress unresolvedAddress(String value, int defaultPort) {
+        if (value.startsWith("[")) {
+            int end = value.indexOf(']');
+            String host = value.substring(1, end);
+            int port = end + 1 < value.length() ? Integer.parseInt(value.substring(end + 2)) : defaultPort;
+            return InetSocketAddress.createUnresolved(host, port);
+        }
+        int colon = value.indexOf(':');
+        if (colon < 0 || colon != value.lastIndexOf(':')) {
+            return InetSocketAddress.createUnresolved(value, defaultPort);
+        }
+        return InetSocketAddress.createUnresolved(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+    }
+
+}
@@ -0,0 +1,64 @@
+package ru.nsu.fit.akitov.socks;
+
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Options set on every client and destination socket. Buffer sizes of 0 leave the system defaults
+ * alone.
+ */
+@RequiredArgsConstructor
+public class SocketOptions {
+
+    private final boolean noDelay;
+    private final boolean keepAlive;
+    private final int receiveBuffer;
+    private final int sendBuffer;
+
+    public static SocketOptions of(ServerSettings settings) {
+        return new SocketOptions(settings.isTcpNoDelay(), settings.isKeepAlive(), settings.getReceiveBufferSize(),
+                settings.getSendBufferSize());
+    }
+
+    public void apply(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+        if (receiveBuffer > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+        }
+        if (sendBuffer > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+        }
+    }
+
+    public void apply(Socket socket) throws IOException {
+        socket.setTcpNoDelay(noDelay);
+        socket.setKeepAlive(keepAlive);
+        if (receiveBuffer > 0) {
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+        if (sendBuffer > 0) {
+            socket.setSendBufferSize(sendBuffer);
+        }
+    }
+
+    // the window scale is agreed on in the handshake, so a large receive buffer must be in place before accepting
+    public void applyToListener(ServerSocketChannel channel) throws IOException {
+        if (receiveBuffer > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+        }
+    }
+
+    public void applyToListener(ServerSocket socket) throws IOException {
+        if (receiveBuffer > 0) {
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+    }
+
+}
@@ -6,13 +6,20 @@ import lombok.experimental.UtilityClass;
 public class SocksConfiguration {
     public final byte VERSION = 0x05;
     public final byte NO_AUTH = 0x00;
+    public final byte USERNAME_PASSWORD = 0x02;
     public final byte AUTH_NO_ACCEPTABLE = (byte) 0xFF;
+    public final byte AUTH_VERSION = 0x01;
+    public final byte AUTH_SUCCESS = 0x00;
+    public final byte AUTH_FAILURE = 0x01;
     public final byte ADDRESS_IPv4 = 0x01;
     public final byte ADDRESS_DOMAIN = 0x03;
     public final byte ADDRESS_IPv6 = 0x04;
     public final byte CMD_TCP_CONNECT = 0x01;
+    public final byte CMD_BIND = 0x02;
+    public final byte CMD_UDP_ASSOCIATE = 0x03;
     public final byte STATUS_GRANTED = 0x00;
     public final byte STATUS_GENERAL_FAILURE = 0x01;
+    public final byte STATUS_HOST_UNREACHABLE = 0x04;
     public final byte STATUS_CONNECTION_REFUSED = 0x05;
     public final byte STATUS_COMMAND_NOT_SUPPORTED = 0x07;
     public final byte STATUS_ADDRESS_NOT_SUPPORTED = 0x08;
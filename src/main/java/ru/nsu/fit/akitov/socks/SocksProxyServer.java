@@ -2,356 +2,187 @@ package ru.nsu.fit.akitov.socks;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.log4j.Log4j2;
-import org.xbill.DNS.*;
-import org.xbill.DNS.Record;
+import ru.nsu.fit.akitov.socks.accesslog.AccessLog;
+import ru.nsu.fit.akitov.socks.auth.CredentialStore;
+import ru.nsu.fit.akitov.socks.auth.FileCredentialStore;
+import ru.nsu.fit.akitov.socks.buffer.MemoryBudget;
 import ru.nsu.fit.akitov.socks.dns.DomainNameStorage;
-import ru.nsu.fit.akitov.socks.dns.ResolveQueues;
-import ru.nsu.fit.akitov.socks.msg.exception.AddressNotSupportedException;
-import ru.nsu.fit.akitov.socks.msg.exception.CommandNotSupportedException;
-import ru.nsu.fit.akitov.socks.msg.exception.SocksException;
-import ru.nsu.fit.akitov.socks.msg.auth.AuthMethod;
-import ru.nsu.fit.akitov.socks.msg.auth.AuthMethodChoice;
-import ru.nsu.fit.akitov.socks.msg.auth.AuthRequest;
-import ru.nsu.fit.akitov.socks.msg.connection.AddressType;
-import ru.nsu.fit.akitov.socks.msg.connection.ConnectionRequest;
-import ru.nsu.fit.akitov.socks.msg.connection.ConnectionResponse;
+import ru.nsu.fit.akitov.socks.limit.AdmissionControl;
+import ru.nsu.fit.akitov.socks.limit.RateLimiter;
+import ru.nsu.fit.akitov.socks.metrics.MetricsHttpServer;
+import ru.nsu.fit.akitov.socks.metrics.ProxyMetrics;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.nio.channels.*;
-import java.util.*;
+import java.util.Iterator;
+import java.util.Set;
 
 @Log4j2
 @RequiredArgsConstructor
-public class SocksProxyServer implements Runnable {
-
-    private static final int BUFFER_SIZE = 4096;
-    private static final InetSocketAddress DNS_SERVER_ADDRESS = ResolverConfig.getCurrentConfig().server();
+public class SocksProxyServer implements ProxyServer {
 
     private final int port;
-    private Selector selector;
-    private DatagramChannel dnsResolver;
-    private final ResolveQueues resolveQueues = new ResolveQueues();
-    private final DomainNameStorage domainNameStorage = new DomainNameStorage();
+    private final ServerSettings settings;
+    private static final Duration DNS_CACHE_SWEEP_INTERVAL = Duration.ofSeconds(30);
+    private static final Duration CREDENTIALS_RELOAD_INTERVAL = Duration.ofSeconds(5);
+    private static final Duration RATE_LIMIT_SWEEP_INTERVAL = Duration.ofSeconds(30);
+
+    private DomainNameStorage domainNameStorage;
+    private CredentialStore credentialStore;
+    private ProxyMetrics metrics;
+    private MetricsHttpServer metricsServer;
+    private AccessLog accessLog;
+    private RateLimiter rateLimiter;
+    private AdmissionControl admissionControl;
+    private SocketOptions socketOptions;
+    private SocksReactor[] reactors;
+    private volatile Acceptor[] acceptors;
+    private int nextReactor;
+    private final Drain drain = new Drain();
 
     @Override
     public void run() {
-        try (ServerSocketChannel serverSocket = createServerSocket()) {
-            dnsResolver = createResolver();
-            selector = Selector.open();
-            serverSocket.register(selector, SelectionKey.OP_ACCEPT);
-            dnsResolver.register(selector, SelectionKey.OP_READ);
-            log.info("Started at port " + port);
-
-            while (selector.select() >= 0) {
-                Set<SelectionKey> keys = selector.selectedKeys();
-                handleKeys(keys);
+        try {
+            createReactors();
+            if (settings.isReusePort() && !settings.isInheritChannel()) {
+                listenOnReactors();
+            } else {
+                listenOnAcceptor();
             }
         } catch (IOException e) {
             log.error(e.getMessage());
+        } catch (UnsupportedOperationException e) {
+            log.error("SO_REUSEPORT is not supported on this platform");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private ServerSocketChannel createServerSocket() throws IOException {
-        ServerSocketChannel serverSocket = ServerSocketChannel.open();
-        serverSocket.bind(new InetSocketAddress(port));
-        serverSocket.configureBlocking(false);
-        return serverSocket;
-    }
-
-    private DatagramChannel createResolver() throws IOException {
-        DatagramChannel resolver = DatagramChannel.open();
-        resolver.socket().bind(new InetSocketAddress(0));
-        resolver.configureBlocking(false);
-        return resolver;
-    }
-
-    private void handleKeys(Set<SelectionKey> keys) {
-        Iterator<SelectionKey> iterator = keys.iterator();
-        while (iterator.hasNext()) {
-            SelectionKey key = iterator.next();
-            iterator.remove();
-            if (!key.isValid()) {
-                continue;
-            }
-            try {
-                if (key.isAcceptable()) {
-                    registerChannel(key);
-                } else if (key.isReadable()) {
-                    readChannel(key);
-                } else if (key.isConnectable()) {
-                    connectChannel(key);
-                } else if (key.isWritable()) {
-                    writeChannel(key);
-                } else {
-                    throw new IllegalStateException("unknown key state");
-                }
-            } catch (IOException e) {
-                log.error(e.getMessage());
-                try {
-                    closeKey(key);
-                } catch (IOException ex) {
-                    log.error(ex.getMessage());
-                }
+    // one listening socket with a thread of its own that hands connections to the reactors in turn
+    private void listenOnAcceptor() throws IOException {
+        try (ServerSocketChannel serverSocket = settings.isInheritChannel() ? Acceptor.inherit()
+                : Acceptor.listen(port, settings.getBacklog(), false, socketOptions);
+             Selector selector = Selector.open()) {
+            Acceptor acceptor = new Acceptor(serverSocket, selector, admissionControl, metrics,
+                    settings.getAcceptBatch(), this::dispatch);
+            acceptors = new Acceptor[]{acceptor};
+            startReactors();
+            log.info("Started at " + serverSocket.getLocalAddress() + " with " + reactors.length + " reactors");
+
+            // the reactors go on serving open tunnels after a drain has closed the listening socket
+            while (!acceptor.isClosed() && selector.select() >= 0) {
+                acceptor.applyRequests();
+                Set<SelectionKey> keys = selector.selectedKeys();
+                handleKeys(keys, acceptor);
             }
         }
     }
 
-    private void registerChannel(SelectionKey key) throws IOException {
-        SelectableChannel channel = ((ServerSocketChannel) key.channel()).accept();
-        channel.configureBlocking(false);
-        channel.register(selector, SelectionKey.OP_READ);
-    }
-
-    private void readChannel(SelectionKey key) throws IOException {
-        if (key.channel().equals(dnsResolver)) {
-            handleDnsResponse();
-            return;
+    // every reactor accepts on a socket of its own bound to the same port, and the kernel spreads connections
+    private void listenOnReactors() throws IOException, InterruptedException {
+        acceptors = new Acceptor[reactors.length];
+        for (int i = 0; i < reactors.length; i++) {
+            acceptors[i] = reactors[i].listen(Acceptor.listen(port, settings.getBacklog(), true, socketOptions));
         }
-        SocketChannel channel = (SocketChannel) key.channel();
-        if (key.attachment() == null) {
-            key.attach(ChannelAttachment.builder()
-                    .state(ChannelState.AUTHORIZING)
-                    .inputBuffer(ByteBuffer.allocate(BUFFER_SIZE))
-                    .build());
+        Thread[] threads = startReactors();
+        log.info("Started at port " + port + " with " + reactors.length + " reactors listening with SO_REUSEPORT");
+        for (Thread thread : threads) {
+            thread.join();
         }
-
-        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
-        int bytesRead = channel.read(attachment.getInputBuffer());
-        if (bytesRead <= 0) {
-            closeKey(key);
-            return;
-        }
-        if (attachment.getState() == ChannelState.AUTHORIZING || attachment.getState() == ChannelState.CONNECTING) {
-            key.interestOps(SelectionKey.OP_WRITE);
-            return;
-        }
-        if (attachment.getDestination() == null) {
-            closeKey(key);
-            return;
-        }
-
-        attachment.getDestination().interestOps(attachment.getDestination().interestOps() | SelectionKey.OP_WRITE);
-        key.interestOps(key.interestOps() ^ SelectionKey.OP_READ);
-        attachment.getInputBuffer().flip();
-
-        log.info(channel.getRemoteAddress() + " is sending data to " + ((SocketChannel) attachment.getDestination().channel()).getRemoteAddress());
     }
 
-    private void handleDnsResponse() throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(512);
-        dnsResolver.receive(buffer);
-        buffer.flip();
-        Message response = new Message(buffer);
-        if (response.getHeader().getRcode() != Rcode.NOERROR) {
-            log.error("some domain name not resolved");
-            return;
-        }
-        List<Record> records = response.getSection(Section.ANSWER);
-        if (records.isEmpty()) {
-            log.error("received empty dns message");
-            return;
-        }
-        ARecord resolved = (ARecord) records.get(records.size() - 1);
-        String domainName = records.get(0).getName().toString();
-        domainName = domainName.substring(0, domainName.length() - 1);
-        InetAddress resolvedAddress = resolved.getAddress();
-        domainNameStorage.putDomainNameAddress(domainName, resolvedAddress);
-        Set<SelectionKey> waiting = resolveQueues.remove(domainName);
-        if (waiting == null) {
+    @Override
+    public void drain(Duration timeout) {
+        Acceptor[] listening = acceptors;
+        if (listening == null) {
             return;
         }
-        for (SelectionKey key : waiting) {
-            ChannelAttachment attachment = (ChannelAttachment) key.attachment();
-            attachment.setDestinationAddress(resolvedAddress);
-            startConnection(key);
-        }
-    }
-
-    private void closeKey(SelectionKey key) throws IOException {
-        log.info("closing " + ((SocketChannel) key.channel()).getRemoteAddress());
-        key.channel().close();
-        key.cancel();
-        if (key.attachment() != null) {
-            SelectionKey dest = ((ChannelAttachment) key.attachment()).getDestination();
-            if (dest != null) {
-                ((ChannelAttachment) dest.attachment()).setDestination(null);
-                if (!dest.isWritable()) {
-                    ((ChannelAttachment) dest.attachment()).getOutputBuffer().flip();
-                }
-                dest.interestOps(SelectionKey.OP_WRITE);
+        if (drain.start(timeout)) {
+            log.info("draining " + admissionControl.getConnections() + " connections");
+            for (Acceptor acceptor : listening) {
+                acceptor.requestClose();
             }
         }
+        drain.await(admissionControl::getConnections);
+        stopServices();
     }
 
-    private void writeChannel(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
-        switch (attachment.getState()) {
-            case AUTHORIZING -> authorize(key);
-            case CONNECTING -> handleConnectionRequest(key);
-            case PROXYING -> {
-                int bytesWritten = channel.write(attachment.getOutputBuffer());
-                if (bytesWritten == -1) {
-                    closeKey(key);
-                } else if (attachment.getOutputBuffer().remaining() == 0) {
-                    if (attachment.getDestination() == null) {
-                        closeKey(key);
-                    } else {
-                        attachment.getOutputBuffer().clear();
-                        attachment.getDestination().interestOps(attachment.getDestination().interestOps() | SelectionKey.OP_READ);
-                        key.interestOps(key.interestOps() ^ SelectionKey.OP_WRITE);
-                    }
-                }
+    // the metrics and the access log stay up until the drain is over, and a second drain finds them already stopped
+    private synchronized void stopServices() {
+        if (metricsServer != null) {
+            metricsServer.close();
+            metricsServer = null;
+        }
+        if (accessLog != null) {
+            try {
+                accessLog.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            accessLog = null;
         }
     }
 
-    private void authorize(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
-        log.info(channel.getRemoteAddress() + " is being authorized");
-        AuthRequest request;
-        try {
-            request = AuthRequest.buildFromByteBuffer(attachment.getInputBuffer());
-        } catch (SocksException e) {
-            log.error("auth request error: " + e.getMessage());
-            closeKey(key);
-            return;
+    private void createReactors() throws IOException {
+        reactors = new SocksReactor[Math.max(1, settings.getReactors())];
+        socketOptions = SocketOptions.of(settings);
+        domainNameStorage = new DomainNameStorage(settings.getDnsCacheSize(), settings.getDnsCacheMinTtl(),
+                settings.getDnsCacheMaxTtl(), settings.getDnsCacheNegativeTtl(), settings.getDnsCacheRefreshFraction(),
+                settings.getDnsCacheStaleGrace(), DNS_CACHE_SWEEP_INTERVAL);
+        if (settings.getCredentialsFile() != null) {
+            credentialStore = new FileCredentialStore(settings.getCredentialsFile(), CREDENTIALS_RELOAD_INTERVAL);
+        }
+        MemoryBudget bufferBudget = new MemoryBudget(settings.getBufferMemoryLimit());
+        metrics = new ProxyMetrics(domainNameStorage, bufferBudget);
+        metrics.registerMBean();
+        if (settings.getMetricsPort() != 0) {
+            metricsServer = new MetricsHttpServer(settings.getMetricsPort(), metrics);
+        }
+        if (settings.getAccessLogFile() != null) {
+            accessLog = new AccessLog(settings.getAccessLogFile());
+        }
+        if (settings.getRateGlobal() > 0 || settings.getRateClient() > 0 || settings.getRateUser() > 0) {
+            rateLimiter = new RateLimiter(settings.getRateGlobal(), settings.getRateClient(), settings.getRateUser(),
+                    settings.getRateBurst(), RATE_LIMIT_SWEEP_INTERVAL);
+        }
+        admissionControl = new AdmissionControl(settings.getMaxConnections(), settings.getMaxConnectionsPerClient(),
+                settings.getMaxPendingLookups(), settings.getMaxPendingConnects(), this::requestResume);
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new SocksReactor(settings, domainNameStorage, bufferBudget, credentialStore, metrics,
+                    accessLog, rateLimiter, admissionControl);
         }
-        AuthMethodChoice methodChoice = AuthMethodChoice.choose(request.suggestedMethods());
-        channel.write(methodChoice.toByteBuffer());
-        if (methodChoice.getChosen() == AuthMethod.NO_ACCEPTABLE_METHOD) {
-            log.error("couldn't authorize " + channel.getRemoteAddress());
-            closeKey(key);
-            return;
-        }
-        log.info(channel.getRemoteAddress() + " successfully authorized");
-        key.interestOps(SelectionKey.OP_READ);
-        attachment.setState(ChannelState.CONNECTING);
-        attachment.getInputBuffer().clear();
     }
 
-    private void handleConnectionRequest(SelectionKey key) throws IOException {
-        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
-        SocketChannel channel = (SocketChannel) key.channel();
-        ConnectionRequest request;
-        try {
-            request = ConnectionRequest.buildFromByteBuffer(attachment.getInputBuffer());
-        } catch (CommandNotSupportedException e) {
-            log.error(e.getMessage());
-            channel.write(ConnectionResponse.builder().responseCode(SocksConfiguration.STATUS_COMMAND_NOT_SUPPORTED)
-                    .build().toByteBuffer());
-            closeKey(key);
-            return;
-        } catch (AddressNotSupportedException e) {
-            log.error(e.getMessage());
-            channel.write(ConnectionResponse.builder().responseCode(SocksConfiguration.STATUS_ADDRESS_NOT_SUPPORTED)
-                    .build().toByteBuffer());
-            closeKey(key);
-            return;
-        } catch (SocksException e) {
-            log.error(e.getMessage());
-            channel.write(ConnectionResponse.builder().responseCode(SocksConfiguration.STATUS_GENERAL_FAILURE)
-                    .build().toByteBuffer());
-            closeKey(key);
-            return;
-        }
-        attachment.setRequest(request);
-        attachment.getInputBuffer().clear();
-        if (request.addressType() != AddressType.DOMAIN) {
-            attachment.setDestinationAddress(InetAddress.getByName(request.getHostName()));
-            startConnection(key);
-        } else {
-            Optional<InetAddress> address = domainNameStorage.getDomainNameAddress(request.getHostName());
-            if (address.isEmpty()) {
-                startResolving(key, request.getHostName());
-            } else {
-                attachment.setDestinationAddress(address.get());
-                startConnection(key);
-            }
+    private Thread[] startReactors() {
+        Thread[] threads = new Thread[reactors.length];
+        for (int i = 0; i < reactors.length; i++) {
+            threads[i] = new Thread(reactors[i], "reactor-" + i);
+            threads[i].start();
         }
+        return threads;
     }
 
-    private void startConnection(SelectionKey key) throws IOException {
-        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
-        InetSocketAddress connectionAddress = new InetSocketAddress(attachment.getDestinationAddress(),
-                attachment.getRequest().port());
-        SocketChannel destination = createConnectionChannel(connectionAddress,
-                ((SocketChannel) key.channel()).getRemoteAddress());
-
-        SelectionKey destKey = destination.register(key.selector(), SelectionKey.OP_CONNECT);
-        key.interestOps(0);
-        attachment.setDestination(destKey);
-        destKey.attach(ChannelAttachment.builder()
-                .state(ChannelState.PROXYING)
-                .destination(key)
-                .build());
-        ((ChannelAttachment) destKey.attachment()).setRequest(attachment.getRequest());
-        attachment.setState(ChannelState.PROXYING);
-    }
-
-    private void startResolving(SelectionKey key, String domainName) throws IOException {
-        log.info("resolving " + domainName);
-        key.interestOps(0);
-
-        Message query = Message.newQuery(Record.newRecord(Name.fromString(domainName + "."), Type.A, DClass.IN));
-        dnsResolver.send(ByteBuffer.wrap(query.toWire()), DNS_SERVER_ADDRESS);
-        resolveQueues.put(domainName, key);
-    }
-
-    private SocketChannel createConnectionChannel(InetSocketAddress address,
-                                                  SocketAddress clientAddress) throws IOException {
-        SocketChannel destination = null;
-        try {
-            destination = SocketChannel.open();
-            destination.configureBlocking(false);
-            log.info(clientAddress + " connecting to " + address.getHostName());
-            destination.connect(address);
-        } catch (IOException e) {
-            if (destination != null) {
-                destination.close();
+    private void handleKeys(Set<SelectionKey> keys, Acceptor acceptor) {
+        Iterator<SelectionKey> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            if (key.isValid() && key.isAcceptable()) {
+                acceptor.accept();
             }
-            throw e;
         }
-        return destination;
     }
 
-    private void connectChannel(SelectionKey key) throws IOException {
-        SocketChannel destChannel = (SocketChannel) key.channel();
-        ChannelAttachment destAttachment = (ChannelAttachment) key.attachment();
-        SocketChannel clientChannel = (SocketChannel) destAttachment.getDestination().channel();
-        ChannelAttachment clientAttachment = (ChannelAttachment) destAttachment.getDestination().attachment();
+    private void dispatch(SocketChannel channel) {
+        reactors[nextReactor].register(channel);
+        nextReactor = (nextReactor + 1) % reactors.length;
+    }
 
-        String address = destAttachment.getRequest().getHostName();
-        if (!destChannel.finishConnect()) {
-            log.error("couldn't connect to " + address);
-            clientChannel.write(ConnectionResponse.builder()
-                    .responseCode(SocksConfiguration.STATUS_CONNECTION_REFUSED)
-                    .request(destAttachment.getRequest())
-                    .build().toByteBuffer());
-            closeKey(key);
-            return;
+    private void requestResume() {
+        for (Acceptor acceptor : acceptors) {
+            acceptor.requestResume();
         }
-
-        log.info(clientChannel.getRemoteAddress() + " connected to " + address);
-        destAttachment.setInputBuffer(ByteBuffer.allocate(BUFFER_SIZE));
-        destAttachment.setOutputBuffer(clientAttachment.getInputBuffer());
-        clientAttachment.setOutputBuffer(destAttachment.getInputBuffer());
-
-        ConnectionResponse response = ConnectionResponse.builder()
-                        .request(destAttachment.getRequest()).responseCode(SocksConfiguration.STATUS_GRANTED)
-                        .build();
-
-        destAttachment.getInputBuffer().put(response.toByteBuffer().array()).flip();
-
-        clientAttachment.setState(ChannelState.PROXYING);
-        destAttachment.setState(ChannelState.PROXYING);
-        destAttachment.getDestination().interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-        key.interestOps(0);
     }
 
 }
@@ -0,0 +1,1174 @@
+package ru.nsu.fit.akitov.socks;
+
+import lombok.extern.log4j.Log4j2;
+import ru.nsu.fit.akitov.socks.accesslog.AccessLog;
+import ru.nsu.fit.akitov.socks.accesslog.TunnelRecord;
+import ru.nsu.fit.akitov.socks.auth.CredentialStore;
+import ru.nsu.fit.akitov.socks.buffer.BufferPool;
+import ru.nsu.fit.akitov.socks.buffer.MemoryBudget;
+import ru.nsu.fit.akitov.socks.dns.DnsResolver;
+import ru.nsu.fit.akitov.socks.dns.DomainNameEntry;
+import ru.nsu.fit.akitov.socks.dns.DomainNameStorage;
+import ru.nsu.fit.akitov.socks.dns.ResolveListener;
+import ru.nsu.fit.akitov.socks.dns.ResolveQueues;
+import ru.nsu.fit.akitov.socks.limit.AdmissionControl;
+import ru.nsu.fit.akitov.socks.limit.RateLimiter;
+import ru.nsu.fit.akitov.socks.limit.TokenBucket;
+import ru.nsu.fit.akitov.socks.metrics.ProxyMetrics;
+import ru.nsu.fit.akitov.socks.msg.HandshakeParser;
+import ru.nsu.fit.akitov.socks.msg.Replies;
+import ru.nsu.fit.akitov.socks.msg.exception.AddressNotSupportedException;
+import ru.nsu.fit.akitov.socks.msg.exception.CommandNotSupportedException;
+import ru.nsu.fit.akitov.socks.msg.exception.SocksException;
+import ru.nsu.fit.akitov.socks.msg.auth.AuthMethod;
+import ru.nsu.fit.akitov.socks.msg.auth.AuthMethodChoice;
+import ru.nsu.fit.akitov.socks.msg.connection.AddressType;
+import ru.nsu.fit.akitov.socks.msg.connection.ConnectionRequest;
+import ru.nsu.fit.akitov.socks.msg.connection.SocksCommand;
+import ru.nsu.fit.akitov.socks.timer.TimerWheel;
+import ru.nsu.fit.akitov.socks.udp.UdpAssociation;
+import ru.nsu.fit.akitov.socks.udp.UdpRelay;
+import ru.nsu.fit.akitov.socks.upstream.ConnectRace;
+import ru.nsu.fit.akitov.socks.upstream.WarmConnectionPool;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+@Log4j2
+public class SocksReactor implements Runnable, ResolveListener {
+
+    private static final int MIN_POOLED_BUFFER_SIZE = 1024;
+    private static final long BUFFER_SWEEP_INTERVAL_MILLIS = 10_000;
+    private static final long WARM_POOL_MAINTENANCE_INTERVAL_MILLIS = 1000;
+    private static final long TIMER_TICK_MILLIS = 10;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    private static final int REPLY_BUFFER_SIZE = 22;
+    private static final int MAX_POOLED_PARSERS = 1024;
+
+    private final Selector selector;
+    private final TimerWheel timers;
+    private final DnsResolver dnsResolver;
+    private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+    private final ResolveQueues resolveQueues = new ResolveQueues();
+    private final Map<String, Long> resolveStarts = new HashMap<>();
+    // clients already racing the first address family of a name whose other family is still being looked up
+    private final Map<String, List<SelectionKey>> awaitingAddresses = new HashMap<>();
+    // names looked up for udp datagrams, which nobody waits for
+    private final Set<String> datagramLookups = new HashSet<>();
+    private final DomainNameStorage domainNameStorage;
+    private final int bufferSize;
+    private final int maxBufferSize;
+    private final BufferPool bufferPool;
+    private final WarmConnectionPool warmConnectionPool;
+    private final UdpRelay udpRelay;
+    private final long connectTimeoutMillis;
+    private final long connectAttemptDelayMillis;
+    private final long handshakeTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long bindTimeoutMillis;
+    private final int acceptBatch;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    // handshakes and udp control connections are read through here, they hold no buffer of their own
+    private final ByteBuffer scratch;
+    private final Deque<HandshakeParser> parsers = new ArrayDeque<>();
+    private final CredentialStore credentialStore;
+    private final ProxyMetrics metrics;
+    private final AccessLog accessLog;
+    private final RateLimiter rateLimiter;
+    private final AdmissionControl admissionControl;
+    private final SocketOptions socketOptions;
+    private Acceptor acceptor;
+
+    public SocksReactor(ServerSettings settings, DomainNameStorage domainNameStorage, MemoryBudget bufferBudget,
+                        CredentialStore credentialStore, ProxyMetrics metrics, AccessLog accessLog,
+                        RateLimiter rateLimiter, AdmissionControl admissionControl) throws IOException {
+        this.domainNameStorage = domainNameStorage;
+        this.credentialStore = credentialStore;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+        this.rateLimiter = rateLimiter;
+        this.admissionControl = admissionControl;
+        socketOptions = SocketOptions.of(settings);
+        bufferSize = settings.getBufferSize();
+        connectTimeoutMillis = settings.getConnectTimeoutMillis();
+        connectAttemptDelayMillis = settings.getConnectAttemptDelayMillis();
+        handshakeTimeoutMillis = settings.getHandshakeTimeoutMillis();
+        idleTimeoutMillis = settings.getIdleTimeoutMillis();
+        bindTimeoutMillis = settings.getBindTimeoutMillis();
+        acceptBatch = settings.getAcceptBatch();
+        maxBufferSize = settings.getMaxBufferSize();
+        // every reactor keeps at most its share of a quarter of the budget idle in its free lists
+        bufferPool = new BufferPool(MIN_POOLED_BUFFER_SIZE, maxBufferSize, bufferBudget,
+                bufferBudget.getLimit() / 4 / Math.max(1, settings.getReactors()));
+        metrics.register(bufferPool);
+        scratch = ByteBuffer.allocateDirect(bufferSize);
+        selector = Selector.open();
+        timers = new TimerWheel(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, System.currentTimeMillis());
+        dnsResolver = new DnsResolver(selector, timers, settings.getDnsServers(), settings.getDnsTimeoutMillis(),
+                settings.getDnsAttempts(), this);
+        warmConnectionPool = new WarmConnectionPool(selector, timers, settings.getWarmDestinations(),
+                settings.getWarmMaxIdle().toMillis(), settings.getWarmAutoThreshold(), settings.getWarmAutoSize(),
+                Math.max(1, settings.getReactors()), connectTimeoutMillis, socketOptions, domainNameStorage,
+                dnsResolver);
+        udpRelay = new UdpRelay(selector, timers, domainNameStorage, this::resolveForDatagram,
+                settings.getUdpNatTimeout().toMillis());
+    }
+
+    public void register(SocketChannel channel) {
+        accepted.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Makes the reactor accept connections on a listening socket of its own, to be called before it
+     * is started.
+     */
+    public Acceptor listen(ServerSocketChannel channel) throws IOException {
+        acceptor = new Acceptor(channel, selector, admissionControl, metrics, acceptBatch, this::registerChannel);
+        return acceptor;
+    }
+
+    @Override
+    public void run() {
+        try (selector; dnsResolver) {
+            timers.schedule(BUFFER_SWEEP_INTERVAL_MILLIS, this::shrinkIdleBuffers);
+            timers.schedule(0, this::maintainWarmConnections);
+            while (selector.select(timers.millisUntilNextTimeout(System.currentTimeMillis())) >= 0) {
+                long wokenAt = System.nanoTime();
+                timers.advance(System.currentTimeMillis());
+                registerAccepted();
+                if (acceptor != null) {
+                    acceptor.applyRequests();
+                }
+                Set<SelectionKey> keys = selector.selectedKeys();
+                handleKeys(keys);
+                metrics.getSelectorLoopTime().recordNanos(System.nanoTime() - wokenAt);
+            }
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
+
+    private void maintainWarmConnections() {
+        warmConnectionPool.maintain(timers.currentTime());
+        timers.schedule(WARM_POOL_MAINTENANCE_INTERVAL_MILLIS, this::maintainWarmConnections);
+    }
+
+    private void handleKeys(Set<SelectionKey> keys) {
+        Iterator<SelectionKey> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (dnsResolver.owns(key)) {
+                dnsResolver.handle(key);
+                continue;
+            }
+            if (warmConnectionPool.owns(key)) {
+                warmConnectionPool.handle(key);
+                continue;
+            }
+            if (udpRelay.owns(key)) {
+                udpRelay.handle(key);
+                continue;
+            }
+            if (acceptor != null && acceptor.owns(key)) {
+                acceptor.accept();
+                continue;
+            }
+            try {
+                if (key.isAcceptable()) {
+                    acceptBound(key);
+                    continue;
+                }
+                if (key.isConnectable()) {
+                    connectChannel(key);
+                    continue;
+                }
+                if (key.isReadable()) {
+                    readChannel(key);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    writeChannel(key);
+                }
+            } catch (IOException e) {
+                log.error(e.getMessage());
+                try {
+                    closeKey(key);
+                } catch (IOException ex) {
+                    log.error(ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void registerAccepted() {
+        SocketChannel channel;
+        while ((channel = accepted.poll()) != null) {
+            registerChannel(channel);
+        }
+    }
+
+    private void registerChannel(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            socketOptions.apply(channel);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(ChannelAttachment.builder()
+                    .state(ChannelState.AUTHORIZING)
+                    .handshake(leaseParser())
+                    .timeout(timers.schedule(handshakeTimeoutMillis, () -> timeOutHandshake(key)))
+                    .record(new TunnelRecord(channel.getRemoteAddress(), timers.currentTime(), System.nanoTime()))
+                    .build());
+            metrics.transition(null, ChannelState.AUTHORIZING);
+        } catch (IOException e) {
+            log.error(e.getMessage());
+            admissionControl.release(channel.socket().getInetAddress());
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.error(ex.getMessage());
+            }
+        }
+    }
+
+    private void readChannel(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        ByteBuffer input = attachment.getInputBuffer();
+        if (input == null) {
+            if (attachment.getHandshake() != null || attachment.getAssociation() != null) {
+                input = scratch.clear();
+            } else {
+                input = bufferPool.lease(bufferSize);
+                attachment.setInputBuffer(input);
+            }
+        }
+        int bytesRead = channel.read(input);
+        if (bytesRead <= 0) {
+            closeKey(key);
+            return;
+        }
+        if (attachment.getHandshake() != null) {
+            readHandshake(key, input);
+            return;
+        }
+        if (attachment.getAssociation() != null) {
+            // nothing is relayed over the control connection of a udp association, it only has to stay open
+            input.clear();
+            return;
+        }
+        if (attachment.getListener() != null) {
+            // whatever the client sends before the inbound peer shows up waits in its buffer
+            if (!input.hasRemaining()) {
+                // the first bind reply may still be waiting to go out
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            return;
+        }
+        if (attachment.getDestination() == null) {
+            closeKey(key);
+            return;
+        }
+
+        if (log.isTraceEnabled()) {
+            log.trace(addressOf(key) + " is sending data to " + addressOf(attachment.getDestination()));
+        }
+
+        boolean filled = !attachment.getInputBuffer().hasRemaining();
+        attachment.setReadSinceSweep(true);
+        attachment.setLastActivity(timers.currentTime());
+        SelectionKey destination = attachment.getDestination();
+        // written through in the same event; the bytes still pass through the buffer, since splice(2) is out of
+        // reach without native code on Java 17
+        try {
+            flush(destination);
+        } catch (IOException e) {
+            log.error(e.getMessage());
+            closeKey(destination);
+            return;
+        }
+        if (filled) {
+            growInputBuffer(key);
+        }
+        if (attachment.getBuckets() != null) {
+            long wait = rateLimiter.take(attachment.getBuckets(), bytesRead);
+            if (wait > 0 && attachment.getThrottle() == null) {
+                attachment.setThrottle(timers.schedule(TimeUnit.NANOSECONDS.toMillis(wait) + 1, () -> resume(key)));
+            }
+        }
+        updateInterestOps(key);
+    }
+
+    private void resume(SelectionKey key) {
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        attachment.setThrottle(null);
+        if (key.isValid() && attachment.getDestination() != null) {
+            updateInterestOps(key);
+        }
+    }
+
+    private void growInputBuffer(SelectionKey key) {
+        int capacity = ((ChannelAttachment) key.attachment()).getInputBuffer().capacity();
+        if (capacity >= maxBufferSize) {
+            return;
+        }
+        ByteBuffer grown = bufferPool.tryLease(capacity * 2);
+        if (grown != null) {
+            replaceInputBuffer(key, grown);
+        }
+    }
+
+    private void shrinkIdleBuffers() {
+        int minCapacity = bufferPool.capacityOf(bufferSize);
+        bufferPool.trim();
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof ChannelAttachment attachment)
+                    || attachment.getState() != ChannelState.PROXYING || attachment.getOutputBuffer() == null) {
+                continue;
+            }
+            if (!attachment.isReadSinceSweep() && attachment.getInputBuffer().position() == 0
+                    && attachment.getInputBuffer().capacity() > minCapacity) {
+                replaceInputBuffer(key, bufferPool.lease(bufferSize));
+            }
+            attachment.setReadSinceSweep(false);
+        }
+        timers.schedule(BUFFER_SWEEP_INTERVAL_MILLIS, this::shrinkIdleBuffers);
+    }
+
+    private void replaceInputBuffer(SelectionKey key, ByteBuffer replacement) {
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        ByteBuffer input = attachment.getInputBuffer();
+        input.flip();
+        replacement.put(input);
+        bufferPool.release(input);
+        attachment.setInputBuffer(replacement);
+        SelectionKey destination = attachment.getDestination();
+        if (destination != null) {
+            ((ChannelAttachment) destination.attachment()).setOutputBuffer(replacement);
+        }
+    }
+
+    // relay buffers always stay in fill mode: the reader appends at the position, the writer drains from the start
+    private void flush(SelectionKey key) throws IOException {
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer reply = attachment.getReply();
+        ByteBuffer output = attachment.getOutputBuffer();
+        if (output == null) {
+            channel.write(reply);
+        } else {
+            output.flip();
+            try {
+                if (reply == null) {
+                    channel.write(output);
+                } else {
+                    gather[0] = reply;
+                    gather[1] = output;
+                    channel.write(gather);
+                }
+                metrics.relayed(attachment.isUpstream(), output.position());
+                attachment.getRecord().relayed(attachment.isUpstream(), output.position());
+            } finally {
+                output.compact();
+            }
+        }
+        if (reply != null && !reply.hasRemaining()) {
+            attachment.setReply(null);
+        }
+    }
+
+    private void updateInterestOps(SelectionKey key) {
+        setRelayInterestOps(key);
+        SelectionKey destination = ((ChannelAttachment) key.attachment()).getDestination();
+        if (destination != null) {
+            setRelayInterestOps(destination);
+        }
+    }
+
+    private void setRelayInterestOps(SelectionKey key) {
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        int ops = 0;
+        // a throttled side stops reading until its timer resumes it, instead of being woken up to find no tokens
+        if (attachment.getDestination() != null && attachment.getInputBuffer().hasRemaining()
+                && attachment.getThrottle() == null) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (attachment.getOutputBuffer().position() > 0 || attachment.getReply() != null) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    @Override
+    public void onResolved(String name, List<InetAddress> addresses, long ttlSeconds, boolean complete) {
+        // one family alone isn't cached, clients finding it there would never race the other one
+        if (complete) {
+            domainNameStorage.putDomainNameAddresses(name, addresses, ttlSeconds);
+            finishDatagramLookup(name);
+        }
+        recordResolveTime(name);
+        connectWaiting(name, addresses, complete);
+    }
+
+    @Override
+    public void onCompleted(String name, List<InetAddress> addresses, long ttlSeconds) {
+        domainNameStorage.putDomainNameAddresses(name, addresses, ttlSeconds);
+        finishDatagramLookup(name);
+        recordResolveTime(name);
+        List<SelectionKey> racing = awaitingAddresses.remove(name);
+        if (racing != null) {
+            for (SelectionKey key : racing) {
+                ConnectRace race = key.isValid() ? ((ChannelAttachment) key.attachment()).getConnectRace() : null;
+                if (race != null) {
+                    joinRace(race, addresses);
+                }
+            }
+        }
+        // clients that asked for the name after the first family was handed out
+        connectWaiting(name, addresses, true);
+    }
+
+    private void connectWaiting(String name, List<InetAddress> addresses, boolean complete) {
+        Set<SelectionKey> waiting = resolveQueues.remove(name);
+        if (waiting == null) {
+            return;
+        }
+        admissionControl.finishLookup();
+        for (SelectionKey key : waiting) {
+            if (!key.isValid()) {
+                continue;
+            }
+            ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+            attachment.setDestinationAddresses(addresses);
+            startConnection(key);
+            if (!complete && key.isValid() && attachment.getConnectRace() != null) {
+                attachment.getConnectRace().setAwaitingAddresses(true);
+                awaitingAddresses.computeIfAbsent(name, n -> new ArrayList<>()).add(key);
+            }
+        }
+    }
+
+    private void joinRace(ConnectRace race, List<InetAddress> addresses) {
+        int port = ((ChannelAttachment) race.getClient().attachment()).getRequest().port();
+        for (InetAddress address : addresses) {
+            race.addAddress(new InetSocketAddress(address, port));
+        }
+        race.setAwaitingAddresses(false);
+        if (!race.inProgress()) {
+            startNextAttempt(race);
+        } else if (race.hasNextAddress()) {
+            race.scheduleNextAttempt(timers.schedule(connectAttemptDelayMillis, () -> startNextAttempt(race)));
+        }
+    }
+
+    @Override
+    public void onFailed(String name, int rcode) {
+        log.error("couldn't resolve " + name + ", rcode " + rcode);
+        domainNameStorage.putNegative(name, rcode);
+        finishDatagramLookup(name);
+        recordResolveTime(name);
+        Set<SelectionKey> waiting = resolveQueues.remove(name);
+        if (waiting == null) {
+            return;
+        }
+        admissionControl.finishLookup();
+        for (SelectionKey key : waiting) {
+            if (key.isValid()) {
+                rejectUnresolved(key);
+            }
+        }
+    }
+
+    // only lookups a client waited for are timed, background refreshes don't add to connection latency
+    private void recordResolveTime(String name) {
+        Long startedAt = resolveStarts.remove(name);
+        if (startedAt != null) {
+            metrics.getDnsLatency().recordNanos(System.nanoTime() - startedAt);
+        }
+    }
+
+    private void rejectUnresolved(SelectionKey key) {
+        reject(key, SocksConfiguration.STATUS_HOST_UNREACHABLE);
+    }
+
+    private void reject(SelectionKey key, byte status) {
+        metrics.error(status);
+        ((ChannelAttachment) key.attachment()).getRecord().replied(status);
+        sendAndClose(key, Replies.failure(status));
+    }
+
+    private void sendAndClose(SelectionKey key, ByteBuffer reply) {
+        ByteBuffer pending = ((ChannelAttachment) key.attachment()).getReply();
+        try {
+            if (pending == null) {
+                ((SocketChannel) key.channel()).write(reply);
+            } else {
+                gather[0] = pending;
+                gather[1] = reply;
+                ((SocketChannel) key.channel()).write(gather);
+            }
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+        closeQuietly(key);
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        try {
+            closeKey(key);
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
+
+    private void closeKey(SelectionKey key) throws IOException {
+        if (!key.channel().isOpen()) {
+            return;
+        }
+        log.debug(() -> "closing " + addressOf(key));
+        key.channel().close();
+        key.cancel();
+        if (key.attachment() != null) {
+            ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+            if (!attachment.isUpstream()) {
+                metrics.transition(attachment.getState(), null);
+                admissionControl.release(((InetSocketAddress) attachment.getRecord().getClient()).getAddress());
+            }
+            if (attachment.getTimeout() != null) {
+                attachment.getTimeout().cancel();
+            }
+            if (attachment.getHandshake() != null) {
+                releaseParser(attachment);
+            }
+            if (attachment.getThrottle() != null) {
+                attachment.getThrottle().cancel();
+            }
+            SelectionKey dest = attachment.getDestination();
+            if (dest == null) {
+                if (attachment.getConnectRace() != null) {
+                    abandonRace(attachment.getConnectRace());
+                }
+                if (attachment.getAssociation() != null) {
+                    udpRelay.close(attachment.getAssociation());
+                }
+                if (attachment.getListener() != null) {
+                    closeChannel(attachment.getListener());
+                }
+                // the peer is already gone, so nobody else references the tunnel buffers
+                bufferPool.release(attachment.getInputBuffer());
+                bufferPool.release(attachment.getOutputBuffer());
+                if (attachment.getBuckets() != null) {
+                    rateLimiter.release(attachment.getBuckets());
+                }
+                if (accessLog != null) {
+                    accessLog.append(attachment.getRecord());
+                }
+            } else {
+                ChannelAttachment destAttachment = (ChannelAttachment) dest.attachment();
+                destAttachment.setDestination(null);
+                if (destAttachment.getOutputBuffer().position() == 0 && destAttachment.getReply() == null) {
+                    closeKey(dest);
+                } else {
+                    dest.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    }
+
+    private void writeChannel(SelectionKey key) throws IOException {
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        flush(key);
+        if (attachment.getOutputBuffer() == null) {
+            // only a handshake reply was pending, the tunnel isn't there yet
+            if (attachment.getReply() == null) {
+                // a full buffer of a client waiting for the inbound peer stays unread, a read would see no room and close
+                boolean reading = attachment.getHandshake() != null || attachment.getAssociation() != null
+                        || (attachment.getListener() != null
+                        && (attachment.getInputBuffer() == null || attachment.getInputBuffer().hasRemaining()));
+                key.interestOps(reading ? SelectionKey.OP_READ : 0);
+            }
+        } else if (attachment.getDestination() != null) {
+            updateInterestOps(key);
+        } else if (attachment.getOutputBuffer().position() == 0 && attachment.getReply() == null) {
+            closeKey(key);
+        }
+    }
+
+    private void readHandshake(SelectionKey key, ByteBuffer input) throws IOException {
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        parseHandshake(key, input);
+        // a reply left over from a greeting goes out here, unless the tunnel is already up and sends it itself
+        if (key.isValid() && attachment.getReply() != null && attachment.getOutputBuffer() == null) {
+            flush(key);
+            if (attachment.getReply() != null) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    // the parser consumes the input as it arrives, so a partial message never occupies the buffer
+    private void parseHandshake(SelectionKey key, ByteBuffer input) throws IOException {
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        HandshakeParser parser = attachment.getHandshake();
+        while (true) {
+            HandshakeParser.Result result;
+            input.flip();
+            try {
+                result = parser.parse(input);
+            } catch (SocksException e) {
+                input.clear();
+                rejectHandshake(key, parser, e);
+                return;
+            }
+            input.compact();
+            switch (result) {
+                case NEED_MORE -> {
+                    return;
+                }
+                case GREETING -> {
+                    if (!authorize(key)) {
+                        return;
+                    }
+                }
+                case CREDENTIALS -> {
+                    if (!authenticate(key)) {
+                        return;
+                    }
+                }
+                case REQUEST -> {
+                    keepPipelined(attachment, input);
+                    handleConnectionRequest(key, parser.request());
+                    return;
+                }
+            }
+        }
+    }
+
+    // the scratch buffer is reused by the next read, so data sent ahead of the tunnel moves to a buffer of its own
+    private void keepPipelined(ChannelAttachment attachment, ByteBuffer input) {
+        if (input.position() == 0) {
+            return;
+        }
+        ByteBuffer leased = bufferPool.lease(bufferSize);
+        leased.put(input.flip());
+        input.clear();
+        attachment.setInputBuffer(leased);
+    }
+
+    private HandshakeParser leaseParser() {
+        HandshakeParser parser = parsers.poll();
+        return parser == null ? new HandshakeParser() : parser;
+    }
+
+    // parsers are reused by the next handshakes, keeping no more of them than a burst of handshakes needs
+    private void releaseParser(ChannelAttachment attachment) {
+        HandshakeParser parser = attachment.getHandshake();
+        attachment.setHandshake(null);
+        if (parsers.size() < MAX_POOLED_PARSERS) {
+            parser.reset();
+            parsers.push(parser);
+        }
+    }
+
+    private void rejectHandshake(SelectionKey key, HandshakeParser parser, SocksException e) throws IOException {
+        log.error("handshake error: " + e.getMessage());
+        if (!parser.isGreetingDone()) {
+            closeKey(key);
+            return;
+        }
+        byte status = SocksConfiguration.STATUS_GENERAL_FAILURE;
+        if (e instanceof CommandNotSupportedException) {
+            status = SocksConfiguration.STATUS_COMMAND_NOT_SUPPORTED;
+        } else if (e instanceof AddressNotSupportedException) {
+            status = SocksConfiguration.STATUS_ADDRESS_NOT_SUPPORTED;
+        }
+        reject(key, status);
+    }
+
+    private boolean authorize(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        AuthMethodChoice methodChoice = AuthMethodChoice.choose(attachment.getHandshake(), credentialStore != null);
+        if (methodChoice.getChosen() == AuthMethod.NO_ACCEPTABLE_METHOD) {
+            log.error("couldn't authorize " + channel.getRemoteAddress());
+            channel.write(methodChoice.toByteBuffer());
+            closeKey(key);
+            return false;
+        }
+        // held back so that it can share a write with the reply to a pipelined request
+        queueReply(attachment, methodChoice.toByteBuffer());
+        if (methodChoice.getChosen() == AuthMethod.USERNAME_PASSWORD) {
+            attachment.getHandshake().expectCredentials();
+            return true;
+        }
+        log.debug(() -> addressOf(key) + " successfully authorized");
+        setState(attachment, ChannelState.CONNECTING);
+        return true;
+    }
+
+    private boolean authenticate(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        String username = attachment.getHandshake().username();
+        byte[] password = attachment.getHandshake().takePassword();
+        boolean success = credentialStore.authenticate(username, password);
+        Arrays.fill(password, (byte) 0);
+        if (!success) {
+            log.error("wrong credentials from " + channel.getRemoteAddress() + " for user " + username);
+            sendAndClose(key, Replies.authStatus(false));
+            return false;
+        }
+        queueReply(attachment, Replies.authStatus(true));
+        log.debug(() -> addressOf(key) + " successfully authorized as " + username);
+        attachment.getRecord().setUser(username);
+        setState(attachment, ChannelState.CONNECTING);
+        return true;
+    }
+
+    // a reply still waiting to be sent, like a method choice before a pipelined auth request, goes first
+    private void queueReply(ChannelAttachment attachment, ByteBuffer reply) {
+        ByteBuffer pending = attachment.getReply();
+        if (pending == null) {
+            attachment.setReply(reply);
+            return;
+        }
+        ByteBuffer combined = ByteBuffer.allocate(pending.remaining() + reply.remaining());
+        combined.put(pending).put(reply).flip();
+        attachment.setReply(combined);
+    }
+
+    private void setState(ChannelAttachment attachment, ChannelState state) {
+        metrics.transition(attachment.getState(), state);
+        attachment.setState(state);
+    }
+
+    // bytes the client pipelined after the request stay in its input buffer and go out once the tunnel is up
+    private void handleConnectionRequest(SelectionKey key, ConnectionRequest request) throws IOException {
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        attachment.setRequest(request);
+        releaseParser(attachment);
+        attachment.getRecord().setRequest(request);
+        metrics.getHandshakeLatency().recordNanos(System.nanoTime() - attachment.getRecord().getAcceptedAt());
+        attachment.getTimeout().cancel();
+        if (request.command() == SocksCommand.UDP_ASSOCIATE) {
+            startAssociation(key, request);
+            return;
+        }
+        if (request.command() == SocksCommand.BIND) {
+            startBind(key);
+            return;
+        }
+        if (request.addressType() != AddressType.DOMAIN) {
+            attachment.setDestinationAddresses(List.of(InetAddress.getByName(request.getHostName())));
+            startConnection(key);
+        } else {
+            String name = request.getHostName();
+            Optional<DomainNameEntry> cached = domainNameStorage.getDomainNameEntry(name);
+            if (cached.isEmpty()) {
+                startResolving(key, name);
+            } else if (cached.get().negative()) {
+                rejectUnresolved(key);
+            } else {
+                if (cached.get().startRefresh(System.currentTimeMillis())) {
+                    log.debug(() -> "refreshing " + name + " in background");
+                    dnsResolver.resolve(name);
+                }
+                attachment.setDestinationAddresses(cached.get().rotatedAddresses());
+                startConnection(key);
+            }
+        }
+    }
+
+    private void startAssociation(SelectionKey key, ConnectionRequest request) throws IOException {
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        InetSocketAddress client = (InetSocketAddress) channel.getRemoteAddress();
+        // the client may name the port it will send from; a domain or zero address tells nothing
+        int clientPort = request.addressType() == AddressType.DOMAIN ? 0 : request.port();
+        UdpAssociation association;
+        try {
+            association = udpRelay.open(client.getAddress(), clientPort);
+        } catch (IOException e) {
+            log.error("couldn't open udp relay for " + client + ": " + e.getMessage());
+            reject(key, SocksConfiguration.STATUS_GENERAL_FAILURE);
+            return;
+        }
+        log.debug(() -> client + " associated udp relay on port " + association.getLocalPort());
+        attachment.setAssociation(association);
+        attachment.getRecord().established();
+        setState(attachment, ChannelState.PROXYING);
+        ByteBuffer reply = ByteBuffer.allocate(REPLY_BUFFER_SIZE);
+        Replies.putSuccess(reply, new InetSocketAddress(((InetSocketAddress) channel.getLocalAddress()).getAddress(),
+                association.getLocalPort()));
+        queueReply(attachment, reply.flip());
+        key.interestOps(SelectionKey.OP_READ);
+        attachment.setLastActivity(timers.currentTime());
+        attachment.setTimeout(timers.schedule(idleTimeoutMillis, () -> checkIdle(key)));
+    }
+
+    private void startBind(SelectionKey key) throws IOException {
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        SelectionKey listenerKey;
+        try {
+            listener.configureBlocking(false);
+            listener.bind(new InetSocketAddress(0), 1);
+            listenerKey = listener.register(selector, SelectionKey.OP_ACCEPT, key);
+        } catch (IOException e) {
+            listener.close();
+            log.error("couldn't listen for " + channel.getRemoteAddress() + ": " + e.getMessage());
+            reject(key, SocksConfiguration.STATUS_GENERAL_FAILURE);
+            return;
+        }
+        InetSocketAddress bound = new InetSocketAddress(((InetSocketAddress) channel.getLocalAddress()).getAddress(),
+                listener.socket().getLocalPort());
+        log.debug(() -> addressOf(key) + " is waiting for an inbound connection on " + bound);
+        attachment.setListener(listenerKey);
+        setState(attachment, ChannelState.PROXYING);
+        ByteBuffer reply = ByteBuffer.allocate(REPLY_BUFFER_SIZE);
+        Replies.putSuccess(reply, bound);
+        queueReply(attachment, reply.flip());
+        key.interestOps(SelectionKey.OP_READ);
+        attachment.setTimeout(timers.schedule(bindTimeoutMillis, () -> timeOutBind(key)));
+    }
+
+    private void timeOutBind(SelectionKey key) {
+        if (key.isValid()) {
+            log.error("nobody connected to the listener of " + addressOf(key) + " in time");
+            reject(key, SocksConfiguration.STATUS_HOST_UNREACHABLE);
+        }
+    }
+
+    // the second bind reply names the peer, and the tunnel then works like one made by connect
+    private void acceptBound(SelectionKey listenerKey) {
+        SelectionKey client = (SelectionKey) listenerKey.attachment();
+        ChannelAttachment clientAttachment = (ChannelAttachment) client.attachment();
+        SocketChannel peer = null;
+        try {
+            peer = ((ServerSocketChannel) listenerKey.channel()).accept();
+            if (peer == null) {
+                return;
+            }
+            InetSocketAddress peerAddress = (InetSocketAddress) peer.getRemoteAddress();
+            if (!expectedPeer(clientAttachment.getRequest(), peerAddress)) {
+                log.error("unexpected inbound connection from " + peerAddress + " for " + addressOf(client));
+                peer.close();
+                return;
+            }
+            peer.configureBlocking(false);
+            socketOptions.apply(peer);
+            SelectionKey peerKey = peer.register(selector, 0);
+            closeChannel(listenerKey);
+            clientAttachment.setListener(null);
+            clientAttachment.getTimeout().cancel();
+            log.debug(() -> peerAddress + " connected to the listener of " + addressOf(client));
+            attachDestination(client, peerKey);
+            establishTunnel(peerKey, peerAddress);
+        } catch (IOException e) {
+            log.error("couldn't accept inbound connection for " + addressOf(client) + ": " + e.getMessage());
+            if (peer != null) {
+                try {
+                    peer.close();
+                } catch (IOException ex) {
+                    log.error(ex.getMessage());
+                }
+            }
+            reject(client, SocksConfiguration.STATUS_GENERAL_FAILURE);
+        }
+    }
+
+    // the request names the host expected to connect back, unless it is a name or a wildcard address
+    private boolean expectedPeer(ConnectionRequest request, InetSocketAddress peer) throws IOException {
+        if (request.addressType() == AddressType.DOMAIN) {
+            return true;
+        }
+        InetAddress expected = InetAddress.getByAddress(request.rawAddress());
+        return expected.isAnyLocalAddress() || expected.equals(peer.getAddress());
+    }
+
+    private void startConnection(SelectionKey key) {
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        ConnectionRequest request = attachment.getRequest();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (InetAddress address : attachment.getDestinationAddresses()) {
+            addresses.add(new InetSocketAddress(address, request.port()));
+        }
+        key.interestOps(0);
+        InetSocketAddress target = warmTargetOf(request);
+        warmConnectionPool.recordRequest(target);
+        SelectionKey warmKey = warmConnectionPool.take(target, addresses);
+        if (warmKey != null) {
+            attachDestination(key, warmKey);
+            establishTunnel(warmKey, localAddressOf(warmKey));
+            return;
+        }
+        if (!admissionControl.tryStartConnect()) {
+            log.error("too many pending connects, rejecting " + addressOf(key));
+            metrics.admission(AdmissionControl.Decision.CONNECT_LIMIT);
+            reject(key, SocksConfiguration.STATUS_GENERAL_FAILURE);
+            return;
+        }
+        ConnectRace race = new ConnectRace(key, addresses);
+        attachment.setConnectRace(race);
+        startNextAttempt(race);
+    }
+
+    // demand is counted per host, however many addresses it has
+    private static InetSocketAddress warmTargetOf(ConnectionRequest request) {
+        try {
+            return WarmConnectionPool.target(request.getHostName(), request.port());
+        } catch (UnknownHostException e) {
+            // a raw address of the right length always converts
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void startNextAttempt(ConnectRace race) {
+        SelectionKey client = race.getClient();
+        while (race.hasNextAddress()) {
+            InetSocketAddress address = race.nextAddress();
+            try {
+                SocketChannel destination = createConnectionChannel(address,
+                        ((SocketChannel) client.channel()).getRemoteAddress());
+                SelectionKey attemptKey = destination.register(selector, SelectionKey.OP_CONNECT,
+                        ChannelAttachment.builder()
+                                .state(ChannelState.PROXYING)
+                                .upstream(true)
+                                .destination(client)
+                                .request(((ChannelAttachment) client.attachment()).getRequest())
+                                .record(((ChannelAttachment) client.attachment()).getRecord())
+                                .build());
+                race.addAttempt(attemptKey,
+                        timers.schedule(connectTimeoutMillis, () -> timeOutAttempt(race, attemptKey)),
+                        race.hasNextAddress()
+                                ? timers.schedule(connectAttemptDelayMillis, () -> startNextAttempt(race))
+                                : null);
+                return;
+            } catch (IOException e) {
+                log.error("couldn't connect to " + address + ": " + e.getMessage());
+            }
+        }
+        if (!race.inProgress() && !race.isAwaitingAddresses()) {
+            failRace(race);
+        }
+    }
+
+    private void timeOutAttempt(ConnectRace race, SelectionKey attemptKey) {
+        log.error("connection attempt to " + addressOf(attemptKey) + " timed out");
+        race.setTimedOut(true);
+        failAttempt(race, attemptKey);
+    }
+
+    private void failAttempt(ConnectRace race, SelectionKey attemptKey) {
+        race.removeAttempt(attemptKey);
+        closeChannel(attemptKey);
+        if (race.hasNextAddress()) {
+            startNextAttempt(race);
+        } else if (!race.inProgress() && !race.isAwaitingAddresses()) {
+            failRace(race);
+        }
+    }
+
+    private void winRace(ConnectRace race, SelectionKey winner) {
+        metrics.getConnectLatency().recordNanos(System.nanoTime() - race.getStartedAt());
+        race.removeAttempt(winner);
+        abandonRace(race);
+        attachDestination(race.getClient(), winner);
+        establishTunnel(winner, localAddressOf(winner));
+    }
+
+    private void failRace(ConnectRace race) {
+        abandonRace(race);
+        reject(race.getClient(), race.isTimedOut() ? SocksConfiguration.STATUS_HOST_UNREACHABLE
+                : SocksConfiguration.STATUS_CONNECTION_REFUSED);
+    }
+
+    private void abandonRace(ConnectRace race) {
+        admissionControl.finishConnect();
+        race.cancelNextAttempt();
+        ((ChannelAttachment) race.getClient().attachment()).setConnectRace(null);
+        for (SelectionKey attemptKey : race.attemptKeys()) {
+            race.removeAttempt(attemptKey);
+            closeChannel(attemptKey);
+        }
+    }
+
+    private void attachDestination(SelectionKey client, SelectionKey destination) {
+        ChannelAttachment clientAttachment = (ChannelAttachment) client.attachment();
+        clientAttachment.setDestination(destination);
+        destination.attach(ChannelAttachment.builder()
+                .state(ChannelState.PROXYING)
+                .upstream(true)
+                .destination(client)
+                .request(clientAttachment.getRequest())
+                .record(clientAttachment.getRecord())
+                .build());
+    }
+
+    private void timeOutHandshake(SelectionKey key) {
+        if (key.isValid()) {
+            log.error("handshake with " + addressOf(key) + " timed out");
+            closeQuietly(key);
+        }
+    }
+
+    private void checkIdle(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        ChannelAttachment attachment = (ChannelAttachment) key.attachment();
+        long lastActivity = attachment.getLastActivity();
+        if (attachment.getAssociation() != null) {
+            lastActivity = Math.max(lastActivity, attachment.getAssociation().getLastActivity());
+        }
+        SelectionKey destination = attachment.getDestination();
+        if (destination != null) {
+            lastActivity = Math.max(lastActivity, ((ChannelAttachment) destination.attachment()).getLastActivity());
+        }
+        long idle = timers.currentTime() - lastActivity;
+        if (idle < idleTimeoutMillis) {
+            attachment.setTimeout(timers.schedule(idleTimeoutMillis - idle, () -> checkIdle(key)));
+            return;
+        }
+        log.debug(() -> "closing idle tunnel of " + addressOf(key));
+        closeQuietly(key);
+        if (destination != null) {
+            closeQuietly(destination);
+        }
+    }
+
+    private void closeChannel(SelectionKey key) {
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
+
+    private SocketAddress addressOf(SelectionKey key) {
+        try {
+            return ((SocketChannel) key.channel()).getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void startResolving(SelectionKey key, String domainName) {
+        if (!resolveQueues.contains(domainName) && !admissionControl.tryStartLookup()) {
+            log.error("too many pending lookups, rejecting " + addressOf(key));
+            metrics.admission(AdmissionControl.Decision.DNS_LIMIT);
+            reject(key, SocksConfiguration.STATUS_GENERAL_FAILURE);
+            return;
+        }
+        log.debug(() -> "resolving " + domainName);
+        key.interestOps(0);
+        resolveQueues.put(domainName, key);
+        resolveStarts.putIfAbsent(domainName, System.nanoTime());
+        dnsResolver.resolve(domainName);
+    }
+
+    // a datagram to a name that isn't cached is dropped, but the lookup it starts counts like a client's
+    private void resolveForDatagram(String domainName) {
+        if (resolveQueues.contains(domainName) || datagramLookups.contains(domainName)) {
+            return;
+        }
+        if (!admissionControl.tryStartLookup()) {
+            metrics.admission(AdmissionControl.Decision.DNS_LIMIT);
+            return;
+        }
+        log.debug(() -> "resolving " + domainName + " for a datagram");
+        datagramLookups.add(domainName);
+        dnsResolver.resolve(domainName);
+    }
+
+    private void finishDatagramLookup(String name) {
+        if (datagramLookups.remove(name)) {
+            admissionControl.finishLookup();
+        }
+    }
+
+    private SocketChannel createConnectionChannel(InetSocketAddress address,
+                                                  SocketAddress clientAddress) throws IOException {
+        SocketChannel destination = null;
+        try {
+            destination = SocketChannel.open();
+            destination.configureBlocking(false);
+            socketOptions.apply(destination);
+            log.debug(() -> clientAddress + " connecting to " + address);
+            destination.connect(address);
+        } catch (IOException e) {
+            if (destination != null) {
+                destination.close();
+            }
+            throw e;
+        }
+        return destination;
+    }
+
+    private void connectChannel(SelectionKey key) throws IOException {
+        SocketChannel destChannel = (SocketChannel) key.channel();
+        ChannelAttachment destAttachment = (ChannelAttachment) key.attachment();
+        SelectionKey client = destAttachment.getDestination();
+        ConnectRace race = ((ChannelAttachment) client.attachment()).getConnectRace();
+        SocketAddress address = destChannel.getRemoteAddress();
+        try {
+            if (!destChannel.finishConnect()) {
+                return;
+            }
+        } catch (IOException e) {
+            log.error("couldn't connect to " + address + ": " + e.getMessage());
+            failAttempt(race, key);
+            return;
+        }
+
+        log.debug(() -> addressOf(client) + " connected to " + address);
+        winRace(race, key);
+    }
+
+    private InetSocketAddress localAddressOf(SelectionKey key) {
+        return (InetSocketAddress) ((SocketChannel) key.channel()).socket().getLocalSocketAddress();
+    }
+
+    private void establishTunnel(SelectionKey key, InetSocketAddress replyAddress) {
+        ChannelAttachment destAttachment = (ChannelAttachment) key.attachment();
+        ChannelAttachment clientAttachment = (ChannelAttachment) destAttachment.getDestination().attachment();
+        if (clientAttachment.getInputBuffer() == null) {
+            clientAttachment.setInputBuffer(bufferPool.lease(bufferSize));
+        }
+        destAttachment.setInputBuffer(bufferPool.lease(bufferSize));
+        destAttachment.setOutputBuffer(clientAttachment.getInputBuffer());
+        clientAttachment.setOutputBuffer(destAttachment.getInputBuffer());
+
+        // the reply is gathered ahead of the first relayed bytes, but isn't counted as relayed itself
+        ByteBuffer reply = ByteBuffer.allocate(REPLY_BUFFER_SIZE);
+        Replies.putSuccess(reply, replyAddress);
+        queueReply(clientAttachment, reply.flip());
+
+        setState(clientAttachment, ChannelState.PROXYING);
+        destAttachment.setState(ChannelState.PROXYING);
+        clientAttachment.setLastActivity(timers.currentTime());
+        clientAttachment.getRecord().established();
+        if (rateLimiter != null) {
+            TokenBucket[] buckets = rateLimiter.acquire(((InetSocketAddress) clientAttachment.getRecord().getClient())
+                    .getAddress(), clientAttachment.getRecord().getUser());
+            clientAttachment.setBuckets(buckets);
+            destAttachment.setBuckets(buckets);
+        }
+        SelectionKey client = destAttachment.getDestination();
+        clientAttachment.setTimeout(timers.schedule(idleTimeoutMillis, () -> checkIdle(client)));
+        updateInterestOps(key);
+    }
+
+}
@@ -0,0 +1,150 @@
+package ru.nsu.fit.akitov.socks.accesslog;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One line per client connection, written to a file by a background thread. Reactors only put the
+ * finished record into a ring buffer, so formatting and file I/O never happen on a selector thread;
+ * when the writer falls behind and the buffer fills up, records are dropped and counted rather than
+ * stalling the relay.
+ */
+@Log4j2
+public class AccessLog implements AutoCloseable {
+
+    private static final int CAPACITY = 16384;
+    private static final int BATCH = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final RingBuffer<TunnelRecord> records = new RingBuffer<>(CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final Writer writer;
+    private final Thread thread;
+    private final StringBuilder line = new StringBuilder(256);
+    private volatile boolean running = true;
+
+    public AccessLog(Path file) throws IOException {
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        thread = new Thread(this::run, "access-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Hands over the record of a connection whose last socket has just been closed.
+     */
+    public void append(TunnelRecord record) {
+        record.closed();
+        if (!records.offer(record)) {
+            dropped.increment();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (writeBatch(BATCH) == 0) {
+                    writer.flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (IOException e) {
+                log.error("couldn't write access log: " + e.getMessage());
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        try (writer) {
+            // whatever is still buffered is written out on close
+            writeBatch(Integer.MAX_VALUE);
+        } catch (IOException e) {
+            log.error("couldn't write access log: " + e.getMessage());
+        }
+    }
+
+    private int writeBatch(int limit) throws IOException {
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            writer.write("# " + lost + " records dropped\n");
+        }
+        int written = 0;
+        TunnelRecord record;
+        while (written < limit && (record = records.poll()) != null) {
+            line.setLength(0);
+            format(record);
+            writer.append(line);
+            written++;
+        }
+        return written;
+    }
+
+    // 2024-01-01T00:00:00.000Z client=10.0.0.1:50000 user=- cmd=tcp_connect dst=example.com:443 reply=0 up=512 down=4096 setup_ms=35 duration_ms=1200
+    private void format(TunnelRecord record) {
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(record.getStartedAt()), line);
+        line.append(" client=");
+        appendAddress(record.getClient());
+        line.append(" user=").append(record.getUser() == null ? "-" : record.getUser());
+        line.append(" cmd=");
+        if (record.getRequest() == null) {
+            line.append("- dst=-");
+        } else {
+            line.append(record.getRequest().command().name().toLowerCase(Locale.ROOT)).append(" dst=");
+            try {
+                line.append(record.getRequest().getHostName());
+            } catch (UnknownHostException e) {
+                line.append('?');
+            }
+            line.append(':').append(record.getRequest().port());
+        }
+        line.append(" reply=");
+        if (record.isReplied()) {
+            line.append(record.getReplyCode());
+        } else {
+            line.append('-');
+        }
+        line.append(" up=").append(record.getBytesUpstream());
+        line.append(" down=").append(record.getBytesDownstream());
+        line.append(" setup_ms=");
+        if (record.isEstablished()) {
+            line.append(TimeUnit.NANOSECONDS.toMillis(record.getEstablishedAt() - record.getAcceptedAt()));
+        } else {
+            line.append('-');
+        }
+        line.append(" duration_ms=").append(TimeUnit.NANOSECONDS.toMillis(record.getClosedAt() - record.getAcceptedAt()));
+        line.append('\n');
+    }
+
+    private void appendAddress(SocketAddress address) {
+        if (address instanceof InetSocketAddress inet) {
+            line.append(inet.getHostString()).append(':').append(inet.getPort());
+        } else {
+            line.append(address);
+        }
+    }
+
+    /**
+     * Writes out the records still in the buffer, flushes and closes the file, and waits for the
+     * writer thread to finish. Records appended afterwards are lost.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join();
+    }
+
+}
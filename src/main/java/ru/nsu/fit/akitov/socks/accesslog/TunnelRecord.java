@@ -0,0 +1,68 @@
+package ru.nsu.fit.akitov.socks.accesslog;
+
+import lombok.Getter;
+import lombok.Setter;
+import ru.nsu.fit.akitov.socks.msg.connection.ConnectionRequest;
+
+import java.net.SocketAddress;
+
+/**
+ * What the access log tells about one client connection. Both sides of a tunnel update the same
+ * record on their reactor thread, and it is handed to the log once the last of them is closed.
+ */
+@Getter
+public class TunnelRecord {
+
+    private static final int NO_REPLY = -1;
+
+    private final SocketAddress client;
+    private final long startedAt;
+    private final long acceptedAt;
+    @Setter
+    private String user;
+    @Setter
+    private ConnectionRequest request;
+    private int replyCode = NO_REPLY;
+    private boolean established;
+    private long establishedAt;
+    private long closedAt;
+    private long bytesUpstream;
+    private long bytesDownstream;
+
+    /**
+     * @param startedAt  wall clock time of the accept in milliseconds
+     * @param acceptedAt {@link System#nanoTime()} of the accept, for durations
+     */
+    public TunnelRecord(SocketAddress client, long startedAt, long acceptedAt) {
+        this.client = client;
+        this.startedAt = startedAt;
+        this.acceptedAt = acceptedAt;
+    }
+
+    public void replied(byte code) {
+        replyCode = code & 0xFF;
+    }
+
+    public void established() {
+        replied((byte) 0);
+        established = true;
+        establishedAt = System.nanoTime();
+    }
+
+    public void relayed(boolean upstream, long bytes) {
+        if (upstream) {
+            bytesUpstream += bytes;
+        } else {
+            bytesDownstream += bytes;
+        }
+    }
+
+    void closed() {
+        closedAt = System.nanoTime();
+    }
+
+    boolean isReplied() {
+        return replyCode != NO_REPLY;
+    }
+
+}
@@ -0,0 +1,15 @@
+package ru.nsu.fit.akitov.socks.auth;
+
+/**
+ * Source of the username/password pairs clients may authenticate with. Implementations are shared by
+ * all reactors and are called on their selector threads, so a lookup must never block.
+ */
+public interface CredentialStore extends AutoCloseable {
+
+    boolean authenticate(String username, byte[] password);
+
+    @Override
+    default void close() {
+    }
+
+}
@@ -0,0 +1,121 @@
+package ru.nsu.fit.akitov.socks.auth;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credentials read from a file of {@code username:password} lines; blank lines and lines starting
+ * with {@code #} are skipped. Passwords are kept only as salted SHA-256 digests computed when the file
+ * is loaded, and the file is reloaded in the background whenever it changes.
+ */
+@Log4j2
+public class FileCredentialStore implements CredentialStore {
+
+    private static final int SALT_LENGTH = 16;
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(FileCredentialStore::sha256);
+
+    private final Path path;
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService watcher;
+    // compared against when the user is unknown, so that a miss costs as much as a wrong password
+    private final Credential decoy;
+    private volatile Map<String, Credential> credentials = Map.of();
+    private long lastModified;
+
+    public FileCredentialStore(Path path, Duration reloadInterval) throws IOException {
+        this.path = path;
+        decoy = credential(new byte[0]);
+        lastModified = Files.getLastModifiedTime(path).toMillis();
+        credentials = load();
+        watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "credential-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(this::reloadIfChanged, reloadInterval.toMillis(), reloadInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean authenticate(String username, byte[] password) {
+        Credential credential = credentials.get(username);
+        boolean known = credential != null;
+        if (!known) {
+            credential = decoy;
+        }
+        MessageDigest digest = DIGESTS.get();
+        digest.update(credential.salt());
+        byte[] hash = digest.digest(password);
+        return MessageDigest.isEqual(hash, credential.hash()) && known;
+    }
+
+    @Override
+    public void close() {
+        watcher.shutdownNow();
+    }
+
+    private void reloadIfChanged() {
+        try {
+            long modified = Files.getLastModifiedTime(path).toMillis();
+            if (modified == lastModified) {
+                return;
+            }
+            lastModified = modified;
+            credentials = load();
+        } catch (IOException e) {
+            log.error("couldn't reload credentials from " + path + ": " + e.getMessage());
+        }
+    }
+
+    private Map<String, Credential> load() throws IOException {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        Map<String, Credential> loaded = new HashMap<>();
+        for (String line : lines) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                log.error("skipping malformed credentials line in " + path);
+                continue;
+            }
+            loaded.put(line.substring(0, colon), credential(line.substring(colon + 1).getBytes(StandardCharsets.UTF_8)));
+        }
+        log.info("loaded " + loaded.size() + " credentials from " + path);
+        return Map.copyOf(loaded);
+    }
+
+    private Credential credential(byte[] password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        MessageDigest digest = DIGESTS.get();
+        digest.update(salt);
+        return new Credential(salt, digest.digest(password));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Credential(byte[] salt, byte[] hash) {
+    }
+
+}
@@ -0,0 +1,127 @@
+package ru.nsu.fit.akitov.socks.blocking;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.xbill.DNS.ExtendedResolver;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SimpleResolver;
+import ru.nsu.fit.akitov.socks.Drain;
+import ru.nsu.fit.akitov.socks.ProxyServer;
+import ru.nsu.fit.akitov.socks.ServerSettings;
+import ru.nsu.fit.akitov.socks.SocketOptions;
+import ru.nsu.fit.akitov.socks.auth.CredentialStore;
+import ru.nsu.fit.akitov.socks.auth.FileCredentialStore;
+import ru.nsu.fit.akitov.socks.dns.DomainNameStorage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Alternative to the selector engine: one thread per client running the handshake with blocking
+ * I/O, and one more per tunnel so that each direction is copied by its own thread. Meant to run on
+ * virtual threads; supports CONNECT only.
+ */
+@Log4j2
+@RequiredArgsConstructor
+public class BlockingProxyServer implements ProxyServer {
+
+    private static final Duration DNS_CACHE_SWEEP_INTERVAL = Duration.ofSeconds(30);
+    private static final Duration CREDENTIALS_RELOAD_INTERVAL = Duration.ofSeconds(5);
+
+    private final int port;
+    private final ServerSettings settings;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final Drain drain = new Drain();
+    private volatile ServerSocket listening;
+
+    @Override
+    public void run() {
+        ThreadFactory threads = Threads.perTask("session-");
+        SocketOptions socketOptions = SocketOptions.of(settings);
+        try (ServerSocket serverSocket = settings.isInheritChannel() ? inherit() : listen(socketOptions);
+             DomainNameStorage domainNameStorage = new DomainNameStorage(settings.getDnsCacheSize(),
+                     settings.getDnsCacheMinTtl(), settings.getDnsCacheMaxTtl(), settings.getDnsCacheNegativeTtl(),
+                     settings.getDnsCacheRefreshFraction(), settings.getDnsCacheStaleGrace(), DNS_CACHE_SWEEP_INTERVAL);
+             CredentialStore credentialStore = settings.getCredentialsFile() == null ? null
+                     : new FileCredentialStore(settings.getCredentialsFile(), CREDENTIALS_RELOAD_INTERVAL)) {
+            Resolver resolver = createResolver();
+            listening = serverSocket;
+            log.info("Started at " + serverSocket.getLocalSocketAddress() + " with thread per connection");
+            while (true) {
+                Socket client = serverSocket.accept();
+                BlockingSession session = new BlockingSession(client, settings, domainNameStorage, resolver,
+                        credentialStore, threads);
+                sessions.incrementAndGet();
+                threads.newThread(() -> {
+                    try {
+                        session.run();
+                    } finally {
+                        sessions.decrementAndGet();
+                    }
+                }).start();
+            }
+        } catch (IOException e) {
+            // a drain ends the accept loop by closing the socket
+            if (!drain.isStarted()) {
+                log.error(e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void drain(Duration timeout) {
+        ServerSocket serverSocket = listening;
+        if (serverSocket == null) {
+            return;
+        }
+        if (drain.start(timeout)) {
+            log.info("draining " + sessions.get() + " connections");
+            try {
+                // the accept loop ends, the session threads go on
+                serverSocket.close();
+            } catch (IOException e) {
+                log.error(e.getMessage());
+            }
+        }
+        drain.await(sessions::get);
+    }
+
+    private ServerSocket inherit() throws IOException {
+        if (!(System.inheritedChannel() instanceof ServerSocketChannel channel)) {
+            throw new IOException("no listening socket was inherited");
+        }
+        return channel.socket();
+    }
+
+    private ServerSocket listen(SocketOptions socketOptions) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            socketOptions.applyToListener(serverSocket);
+            serverSocket.bind(new InetSocketAddress(port), settings.getBacklog());
+            return serverSocket;
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    private Resolver createResolver() {
+        List<Resolver> resolvers = new ArrayList<>();
+        for (InetSocketAddress server : settings.getDnsServers()) {
+            resolvers.add(new SimpleResolver(server));
+        }
+        ExtendedResolver resolver = new ExtendedResolver(resolvers);
+        resolver.setTimeout(Duration.ofMillis(settings.getDnsTimeoutMillis()));
+        resolver.setRetries(settings.getDnsAttempts());
+        return resolver;
+    }
+
+}
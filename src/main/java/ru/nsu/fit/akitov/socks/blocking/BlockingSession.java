@@ -0,0 +1,325 @@
+package ru.nsu.fit.akitov.socks.blocking;
+
+import lombok.extern.log4j.Log4j2;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+import ru.nsu.fit.akitov.socks.ServerSettings;
+import ru.nsu.fit.akitov.socks.SocketOptions;
+import ru.nsu.fit.akitov.socks.SocksConfiguration;
+import ru.nsu.fit.akitov.socks.auth.CredentialStore;
+import ru.nsu.fit.akitov.socks.dns.DomainNameEntry;
+import ru.nsu.fit.akitov.socks.dns.DomainNameStorage;
+import ru.nsu.fit.akitov.socks.msg.HandshakeParser;
+import ru.nsu.fit.akitov.socks.msg.Replies;
+import ru.nsu.fit.akitov.socks.msg.auth.AuthMethod;
+import ru.nsu.fit.akitov.socks.msg.auth.AuthMethodChoice;
+import ru.nsu.fit.akitov.socks.msg.connection.AddressType;
+import ru.nsu.fit.akitov.socks.msg.connection.ConnectionRequest;
+import ru.nsu.fit.akitov.socks.msg.connection.SocksCommand;
+import ru.nsu.fit.akitov.socks.msg.exception.AddressNotSupportedException;
+import ru.nsu.fit.akitov.socks.msg.exception.CommandNotSupportedException;
+import ru.nsu.fit.akitov.socks.msg.exception.SocksException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+
+@Log4j2
+class BlockingSession implements Runnable {
+
+    private static final int REPLY_BUFFER_SIZE = 22;
+
+    private final Socket client;
+    private final ServerSettings settings;
+    private final DomainNameStorage domainNameStorage;
+    private final Resolver resolver;
+    private final CredentialStore credentialStore;
+    private final ThreadFactory threads;
+    private final SocketOptions socketOptions;
+    private final ByteBuffer input;
+    private boolean connectTimedOut;
+    private volatile long lastActivity;
+
+    BlockingSession(Socket client, ServerSettings settings, DomainNameStorage domainNameStorage, Resolver resolver,
+                    CredentialStore credentialStore, ThreadFactory threads) {
+        this.client = client;
+        this.settings = settings;
+        this.domainNameStorage = domainNameStorage;
+        this.resolver = resolver;
+        this.credentialStore = credentialStore;
+        this.threads = threads;
+        socketOptions = SocketOptions.of(settings);
+        input = ByteBuffer.allocate(settings.getBufferSize());
+    }
+
+    @Override
+    public void run() {
+        try (client) {
+            socketOptions.apply(client);
+            ConnectionRequest request = handshake();
+            if (request == null) {
+                return;
+            }
+            if (request.command() != SocksCommand.TCP_CONNECT) {
+                send(Replies.failure(SocksConfiguration.STATUS_COMMAND_NOT_SUPPORTED));
+                return;
+            }
+            List<InetAddress> addresses = resolve(request);
+            if (addresses == null) {
+                send(Replies.failure(SocksConfiguration.STATUS_HOST_UNREACHABLE));
+                return;
+            }
+            Socket destination = connect(addresses, request.port());
+            if (destination == null) {
+                send(Replies.failure(connectTimedOut ? SocksConfiguration.STATUS_HOST_UNREACHABLE
+                        : SocksConfiguration.STATUS_CONNECTION_REFUSED));
+                return;
+            }
+            relay(destination);
+        } catch (SocketTimeoutException e) {
+            log.error("handshake with " + client.getRemoteSocketAddress() + " timed out");
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
+
+    // bytes the client pipelined after the request are left in the input buffer
+    private ConnectionRequest handshake() throws IOException {
+        InputStream in = client.getInputStream();
+        HandshakeParser parser = new HandshakeParser();
+        // the timeout bounds the whole handshake like on the nio engine, not every read on its own
+        long deadline = System.currentTimeMillis() + settings.getHandshakeTimeoutMillis();
+        while (true) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new SocketTimeoutException("handshake timed out");
+            }
+            client.setSoTimeout((int) Math.min(left, Integer.MAX_VALUE));
+            int read = in.read(input.array(), input.position(), input.remaining());
+            if (read < 0) {
+                return null;
+            }
+            input.position(input.position() + read);
+            input.flip();
+            try {
+                HandshakeParser.Result result;
+                while ((result = parser.parse(input)) != HandshakeParser.Result.NEED_MORE) {
+                    switch (result) {
+                        case GREETING -> {
+                            if (!authorize(parser)) {
+                                return null;
+                            }
+                        }
+                        case CREDENTIALS -> {
+                            if (!authenticate(parser)) {
+                                return null;
+                            }
+                        }
+                        case REQUEST -> {
+                            input.compact();
+                            return parser.request();
+                        }
+                    }
+                }
+            } catch (SocksException e) {
+                log.error("handshake error: " + e.getMessage());
+                if (parser.isGreetingDone()) {
+                    send(Replies.failure(statusOf(e)));
+                }
+                return null;
+            }
+            input.compact();
+        }
+    }
+
+    private boolean authorize(HandshakeParser parser) throws IOException {
+        AuthMethodChoice methodChoice = AuthMethodChoice.choose(parser, credentialStore != null);
+        send(methodChoice.toByteBuffer());
+        if (methodChoice.getChosen() == AuthMethod.NO_ACCEPTABLE_METHOD) {
+            log.error("couldn't authorize " + client.getRemoteSocketAddress());
+            return false;
+        }
+        if (methodChoice.getChosen() == AuthMethod.USERNAME_PASSWORD) {
+            parser.expectCredentials();
+        }
+        return true;
+    }
+
+    private boolean authenticate(HandshakeParser parser) throws IOException {
+        String username = parser.username();
+        byte[] password = parser.takePassword();
+        boolean success = credentialStore.authenticate(username, password);
+        Arrays.fill(password, (byte) 0);
+        send(Replies.authStatus(success));
+        if (!success) {
+            log.error("wrong credentials from " + client.getRemoteSocketAddress() + " for user " + username);
+        }
+        return success;
+    }
+
+    private static byte statusOf(SocksException e) {
+        if (e instanceof CommandNotSupportedException) {
+            return SocksConfiguration.STATUS_COMMAND_NOT_SUPPORTED;
+        }
+        if (e instanceof AddressNotSupportedException) {
+            return SocksConfiguration.STATUS_ADDRESS_NOT_SUPPORTED;
+        }
+        return SocksConfiguration.STATUS_GENERAL_FAILURE;
+    }
+
+    private List<InetAddress> resolve(ConnectionRequest request) throws IOException {
+        if (request.addressType() != AddressType.DOMAIN) {
+            return List.of(InetAddress.getByName(request.getHostName()));
+        }
+        String name = request.getHostName();
+        Optional<DomainNameEntry> cached = domainNameStorage.getDomainNameEntry(name);
+        if (cached.isPresent()) {
+            return cached.get().negative() ? null : cached.get().rotatedAddresses();
+        }
+        return lookUp(name);
+    }
+
+    // addresses are tried one by one, so IPv4 goes first to not wait out a broken IPv6 route every time
+    private List<InetAddress> lookUp(String name) {
+        List<InetAddress> addresses = new ArrayList<>();
+        long ttl = Long.MAX_VALUE;
+        boolean unanswered = false;
+        for (int type : new int[]{Type.A, Type.AAAA}) {
+            Lookup lookup;
+            try {
+                lookup = new Lookup(name, type);
+            } catch (TextParseException e) {
+                log.error("invalid domain name " + name);
+                return null;
+            }
+            lookup.setResolver(resolver);
+            // the default cache would keep answers with their own TTLs, past what DomainNameStorage allows
+            lookup.setCache(null);
+            Record[] records = lookup.run();
+            if (records == null) {
+                unanswered |= lookup.getResult() == Lookup.TRY_AGAIN;
+                continue;
+            }
+            for (Record record : records) {
+                if (record instanceof ARecord a) {
+                    addresses.add(a.getAddress());
+                } else if (record instanceof AAAARecord aaaa) {
+                    addresses.add(aaaa.getAddress());
+                }
+                ttl = Math.min(ttl, record.getTTL());
+            }
+        }
+        if (addresses.isEmpty()) {
+            log.error("couldn't resolve " + name);
+            domainNameStorage.putNegative(name, unanswered ? Rcode.SERVFAIL : Rcode.NXDOMAIN);
+            return null;
+        }
+        domainNameStorage.putDomainNameAddresses(name, addresses, ttl);
+        return addresses;
+    }
+
+    private Socket connect(List<InetAddress> addresses, int port) {
+        for (InetAddress address : addresses) {
+            Socket destination = new Socket();
+            try {
+                socketOptions.apply(destination);
+                destination.connect(new InetSocketAddress(address, port), (int) settings.getConnectTimeoutMillis());
+                log.debug(() -> client.getRemoteSocketAddress() + " connected to " + destination.getRemoteSocketAddress());
+                return destination;
+            } catch (IOException e) {
+                connectTimedOut |= e instanceof SocketTimeoutException;
+                log.error("couldn't connect to " + address + ": " + e.getMessage());
+                closeQuietly(destination);
+            }
+        }
+        return null;
+    }
+
+    private void relay(Socket destination) throws IOException {
+        try (destination) {
+            ByteBuffer reply = ByteBuffer.allocate(REPLY_BUFFER_SIZE);
+            Replies.putSuccess(reply, (InetSocketAddress) destination.getLocalSocketAddress());
+            client.getOutputStream().write(reply.array(), 0, reply.position());
+            input.flip();
+            destination.getOutputStream().write(input.array(), input.position(), input.remaining());
+
+            int idleTimeout = (int) settings.getIdleTimeoutMillis();
+            client.setSoTimeout(idleTimeout);
+            destination.setSoTimeout(idleTimeout);
+            lastActivity = System.currentTimeMillis();
+            Thread downstream = threads.newThread(() -> pipe(destination, client));
+            downstream.start();
+            pipe(client, destination);
+            downstream.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // copies one direction until end of stream, then half-closes the other side
+    private void pipe(Socket from, Socket to) {
+        byte[] buffer = new byte[settings.getBufferSize()];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            while (true) {
+                int read;
+                try {
+                    read = in.read(buffer);
+                } catch (SocketTimeoutException e) {
+                    // only this direction was quiet, the tunnel is idle when the other one was as well
+                    if (System.currentTimeMillis() - lastActivity < settings.getIdleTimeoutMillis()) {
+                        continue;
+                    }
+                    log.debug(() -> "closing idle tunnel of " + client.getRemoteSocketAddress());
+                    closeQuietly(from);
+                    closeQuietly(to);
+                    return;
+                }
+                if (read < 0) {
+                    break;
+                }
+                lastActivity = System.currentTimeMillis();
+                out.write(buffer, 0, read);
+            }
+            if (!to.isClosed()) {
+                to.shutdownOutput();
+            }
+        } catch (IOException e) {
+            // the other direction is stuck on a read otherwise
+            closeQuietly(from);
+            closeQuietly(to);
+        }
+    }
+
+    private void send(ByteBuffer reply) throws IOException {
+        byte[] bytes = new byte[reply.remaining()];
+        reply.get(bytes);
+        client.getOutputStream().write(bytes);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package ru.nsu.fit.akitov.socks.blocking;
+
+import lombok.experimental.UtilityClass;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threads for the blocking engine. Virtual threads are used when the runtime has them; the project
+ * still targets Java 17, so they are looked up reflectively, and plain threads with a small stack
+ * stand in for them on older runtimes.
+ */
+@Log4j2
+@UtilityClass
+public class Threads {
+
+    private final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    public ThreadFactory perTask(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            log.info("virtual threads are not available, using platform threads");
+            AtomicLong counter = new AtomicLong();
+            return task -> new Thread(null, task, prefix + counter.getAndIncrement(), PLATFORM_STACK_SIZE);
+        }
+    }
+
+}
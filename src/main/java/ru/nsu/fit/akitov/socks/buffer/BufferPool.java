@@ -0,0 +1,121 @@
+package ru.nsu.fit.akitov.socks.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direct buffers split into power-of-two size classes. A pool is owned by a single reactor and
+ * is not thread-safe; the amount of direct memory all pools may hold is capped by a shared
+ * {@link MemoryBudget}. When the budget is exhausted, heap buffers are handed out instead, and
+ * released buffers are dropped rather than kept in the pool once most of the budget is in use or
+ * the pool already holds its high-water mark of free bytes. {@link #trim()} hands back buffers that
+ * sat unused through a whole period, so free lists filled by a burst shrink again afterwards.
+ */
+public class BufferPool {
+
+    private final int minSize;
+    private final int maxSize;
+    private final MemoryBudget budget;
+    private final long maxFreeBytes;
+    private final ArrayDeque<ByteBuffer>[] free;
+    // the fewest free buffers each size class had since the last trim, the ones nobody needed
+    private final int[] lowWater;
+    private long freeBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minSize, int maxSize, MemoryBudget budget, long maxFreeBytes) {
+        this.minSize = Integer.highestOneBit(minSize);
+        this.maxSize = maxSize;
+        this.budget = budget;
+        this.maxFreeBytes = maxFreeBytes;
+        free = new ArrayDeque[sizeClassOf(maxSize) + 1];
+        lowWater = new int[free.length];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayDeque<>();
+        }
+    }
+
+    public ByteBuffer lease(int size) {
+        ByteBuffer buffer = tryLease(size);
+        if (buffer != null) {
+            return buffer;
+        }
+        fallbacks.increment();
+        return ByteBuffer.allocate(capacityOf(size));
+    }
+
+    public ByteBuffer tryLease(int size) {
+        int sizeClass = sizeClassOf(Math.min(size, maxSize));
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer != null) {
+            hits.increment();
+            freeBytes -= buffer.capacity();
+            lowWater[sizeClass] = Math.min(lowWater[sizeClass], free[sizeClass].size());
+            return buffer.clear();
+        }
+        int capacity = capacityOf(size);
+        if (!budget.tryReserve(capacity)) {
+            return null;
+        }
+        misses.increment();
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        if (budget.getUsed() > budget.getLimit() / 4 * 3 || freeBytes + buffer.capacity() > maxFreeBytes) {
+            budget.free(buffer.capacity());
+            return;
+        }
+        freeBytes += buffer.capacity();
+        free[sizeClassOf(buffer.capacity())].push(buffer);
+    }
+
+    /**
+     * Returns the buffers that stayed in the pool since the previous call to the budget, taking the
+     * least recently released ones first.
+     */
+    public void trim() {
+        for (int i = 0; i < free.length; i++) {
+            for (int unused = lowWater[i]; unused > 0; unused--) {
+                ByteBuffer buffer = free[i].pollLast();
+                freeBytes -= buffer.capacity();
+                budget.free(buffer.capacity());
+            }
+            lowWater[i] = free[i].size();
+        }
+    }
+
+    public int capacityOf(int size) {
+        return minSize << sizeClassOf(Math.min(size, maxSize));
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Leases that got a heap buffer because the budget had no direct memory left.
+     */
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    private int sizeClassOf(int size) {
+        if (size <= minSize) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+}
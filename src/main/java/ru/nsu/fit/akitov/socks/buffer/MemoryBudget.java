@@ -0,0 +1,34 @@
+package ru.nsu.fit.akitov.socks.buffer;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+@RequiredArgsConstructor
+public class MemoryBudget {
+
+    @Getter
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+
+    public boolean tryReserve(long bytes) {
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    public void free(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+}
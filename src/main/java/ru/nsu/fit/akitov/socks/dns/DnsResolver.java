@@ -0,0 +1,437 @@
+package ru.nsu.fit.akitov.socks.dns;
+
+import lombok.extern.log4j.Log4j2;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+import ru.nsu.fit.akitov.socks.timer.Timeout;
+import ru.nsu.fit.akitov.socks.timer.TimerWheel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Non-blocking stub resolver driven by the selector of its reactor. Every lookup sends A and AAAA
+ * queries in parallel, follows CNAME chains, retransmits lost queries to the next upstream server
+ * and repeats truncated queries over TCP. Addresses of the family that answers first are handed out
+ * before the other one is in, as RFC 8305 suggests, but the other query keeps running and its
+ * addresses follow through {@link ResolveListener#onCompleted}.
+ */
+@Log4j2
+public class DnsResolver implements Closeable {
+
+    private static final int UDP_PACKET_SIZE = 512;
+    private static final int MAX_CNAME_HOPS = 8;
+    private static final long RESOLUTION_DELAY_MILLIS = 50;
+
+    private final Selector selector;
+    private final TimerWheel timers;
+    private final DatagramChannel channel;
+    private final List<InetSocketAddress> upstreams;
+    private final long timeoutMillis;
+    private final int maxAttempts;
+    private final ResolveListener listener;
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(UDP_PACKET_SIZE);
+    private final Map<Integer, Query> queries = new HashMap<>();
+    private final Map<String, Lookup> lookups = new HashMap<>();
+    private int nextUpstream;
+
+    public DnsResolver(Selector selector, TimerWheel timers, List<InetSocketAddress> upstreams, long timeoutMillis,
+                       int maxAttempts, ResolveListener listener) throws IOException {
+        if (upstreams.isEmpty()) {
+            throw new IllegalArgumentException("no dns servers configured");
+        }
+        this.selector = selector;
+        this.timers = timers;
+        this.upstreams = upstreams;
+        this.timeoutMillis = timeoutMillis;
+        this.maxAttempts = maxAttempts;
+        this.listener = listener;
+        channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(0));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    public void resolve(String name) {
+        if (lookups.containsKey(name)) {
+            return;
+        }
+        Name qname;
+        try {
+            qname = Name.fromString(name, Name.root);
+        } catch (TextParseException e) {
+            log.error("invalid domain name " + name);
+            listener.onFailed(name, Rcode.FORMERR);
+            return;
+        }
+        Lookup lookup = new Lookup(name);
+        lookups.put(name, lookup);
+        send(new Query(lookup, Type.A, qname, 0), nextUpstream++);
+        send(new Query(lookup, Type.AAAA, qname, 0), nextUpstream);
+    }
+
+    public boolean owns(SelectionKey key) {
+        return key.attachment() == this || key.attachment() instanceof TcpExchange;
+    }
+
+    public void handle(SelectionKey key) {
+        if (key.attachment() == this) {
+            receive();
+            return;
+        }
+        TcpExchange exchange = (TcpExchange) key.attachment();
+        try {
+            exchange.handle(key);
+        } catch (IOException e) {
+            log.error("dns over tcp failed: " + e.getMessage());
+            exchange.close();
+            retry(exchange.query, Rcode.SERVFAIL);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Query query : queries.values()) {
+            if (query.exchange != null) {
+                query.exchange.close();
+            }
+        }
+        channel.close();
+    }
+
+    private void send(Query query, int upstreamIndex) {
+        query.id = newId();
+        query.upstreamIndex = upstreamIndex;
+        query.upstream = upstreams.get(Math.floorMod(upstreamIndex, upstreams.size()));
+        query.attempts++;
+        query.timeout = timers.schedule(timeoutMillis, () -> timeOut(query));
+        Message message = Message.newQuery(Record.newRecord(query.name, query.type, DClass.IN));
+        message.getHeader().setID(query.id);
+        query.wire = message.toWire();
+        query.lookup.active.add(query);
+        queries.put(query.id, query);
+        try {
+            channel.send(ByteBuffer.wrap(query.wire), query.upstream);
+        } catch (IOException e) {
+            log.error("couldn't send dns query to " + query.upstream + ": " + e.getMessage());
+        }
+    }
+
+    private void timeOut(Query query) {
+        if (queries.get(query.id) == query) {
+            log.debug(() -> "dns query for " + query.name + " timed out");
+            retry(query, Rcode.SERVFAIL);
+        }
+    }
+
+    private int newId() {
+        int id;
+        do {
+            id = ThreadLocalRandom.current().nextInt(0x10000);
+        } while (queries.containsKey(id));
+        return id;
+    }
+
+    private void receive() {
+        try {
+            SocketAddress source;
+            while ((source = channel.receive(packet.clear())) != null) {
+                packet.flip();
+                Message response;
+                try {
+                    response = new Message(packet);
+                } catch (IOException e) {
+                    log.error("malformed dns response from " + source);
+                    continue;
+                }
+                handleResponse(response, source, false);
+            }
+        } catch (IOException e) {
+            log.error("dns receive failed: " + e.getMessage());
+        }
+    }
+
+    private void handleResponse(Message response, SocketAddress source, boolean overTcp) {
+        Query query = queries.get(response.getHeader().getID());
+        if (query == null || !query.upstream.equals(source) || !answersQuestion(query, response)) {
+            log.debug(() -> "dropping unexpected dns response from " + source);
+            return;
+        }
+        if (!overTcp && response.getHeader().getFlag(Flags.TC)) {
+            startTcp(query);
+            return;
+        }
+        queries.remove(query.id);
+        query.timeout.cancel();
+        query.lookup.active.remove(query);
+        int rcode = response.getRcode();
+        if (rcode == Rcode.SERVFAIL || rcode == Rcode.REFUSED) {
+            retry(query, rcode);
+            return;
+        }
+        if (rcode != Rcode.NOERROR) {
+            complete(query, rcode, List.of(), 0);
+            return;
+        }
+
+        List<Record> answers = response.getSection(Section.ANSWER);
+        List<InetAddress> addresses = new ArrayList<>();
+        Name current = query.name;
+        int hops = query.hops;
+        long ttl = Long.MAX_VALUE;
+        while (true) {
+            for (Record record : answers) {
+                if (record.getType() == query.type && record.getName().equals(current)) {
+                    addresses.add(addressOf(record));
+                    ttl = Math.min(ttl, record.getTTL());
+                }
+            }
+            if (!addresses.isEmpty()) {
+                break;
+            }
+            CNAMERecord alias = findAlias(answers, current);
+            if (alias == null) {
+                break;
+            }
+            if (++hops > MAX_CNAME_HOPS) {
+                log.error("too long cname chain for " + query.lookup.name);
+                complete(query, Rcode.SERVFAIL, List.of(), 0);
+                return;
+            }
+            ttl = Math.min(ttl, alias.getTTL());
+            current = alias.getTarget();
+        }
+        if (addresses.isEmpty() && !current.equals(query.name)) {
+            send(new Query(query.lookup, query.type, current, hops), query.upstreamIndex);
+            return;
+        }
+        complete(query, Rcode.NOERROR, addresses, addresses.isEmpty() ? 0 : ttl);
+    }
+
+    private boolean answersQuestion(Query query, Message response) {
+        Record question = response.getQuestion();
+        return question != null && question.getType() == query.type && question.getName().equals(query.name);
+    }
+
+    private CNAMERecord findAlias(List<Record> answers, Name name) {
+        for (Record record : answers) {
+            if (record instanceof CNAMERecord alias && record.getName().equals(name)) {
+                return alias;
+            }
+        }
+        return null;
+    }
+
+    private InetAddress addressOf(Record record) {
+        if (record instanceof ARecord a) {
+            return a.getAddress();
+        }
+        return ((AAAARecord) record).getAddress();
+    }
+
+    private void retry(Query query, int rcode) {
+        queries.remove(query.id);
+        query.timeout.cancel();
+        query.lookup.active.remove(query);
+        if (query.exchange != null) {
+            query.exchange.close();
+            query.exchange = null;
+        }
+        if (query.attempts >= maxAttempts) {
+            complete(query, rcode, List.of(), 0);
+            return;
+        }
+        send(query, query.upstreamIndex + 1);
+    }
+
+    private void complete(Query query, int rcode, List<InetAddress> addresses, long ttl) {
+        Lookup lookup = query.lookup;
+        if (query.type == Type.A) {
+            lookup.ipv4 = addresses;
+            lookup.ipv4Done = true;
+        } else {
+            lookup.ipv6 = addresses;
+            lookup.ipv6Done = true;
+        }
+        if (!addresses.isEmpty()) {
+            lookup.ttl = Math.min(lookup.ttl, ttl);
+        } else if (rcode != Rcode.NOERROR) {
+            lookup.rcode = rcode;
+        }
+
+        if (lookup.ipv4Done && lookup.ipv6Done) {
+            finish(lookup);
+        } else if (!lookup.ipv6.isEmpty()) {
+            deliverFirst(lookup);
+        } else if (!lookup.ipv4.isEmpty() && lookup.resolutionDelay == null) {
+            // give AAAA a short head start as suggested by RFC 8305 before going ahead with IPv4 alone
+            lookup.resolutionDelay = timers.schedule(RESOLUTION_DELAY_MILLIS, () -> deliverFirst(lookup));
+        }
+    }
+
+    private void deliverFirst(Lookup lookup) {
+        if (lookups.get(lookup.name) != lookup || lookup.delivered) {
+            return;
+        }
+        lookup.delivered = true;
+        listener.onResolved(lookup.name, addressesOf(lookup), lookup.ttl, false);
+    }
+
+    private void finish(Lookup lookup) {
+        lookups.remove(lookup.name);
+        if (lookup.resolutionDelay != null) {
+            lookup.resolutionDelay.cancel();
+        }
+        List<InetAddress> addresses = addressesOf(lookup);
+        if (lookup.delivered) {
+            listener.onCompleted(lookup.name, addresses, lookup.ttl);
+        } else if (addresses.isEmpty()) {
+            listener.onFailed(lookup.name, lookup.rcode);
+        } else {
+            listener.onResolved(lookup.name, addresses, lookup.ttl, true);
+        }
+    }
+
+    private List<InetAddress> addressesOf(Lookup lookup) {
+        List<InetAddress> addresses = new ArrayList<>(lookup.ipv6.size() + lookup.ipv4.size());
+        for (int i = 0; i < Math.max(lookup.ipv6.size(), lookup.ipv4.size()); i++) {
+            if (i < lookup.ipv6.size()) {
+                addresses.add(lookup.ipv6.get(i));
+            }
+            if (i < lookup.ipv4.size()) {
+                addresses.add(lookup.ipv4.get(i));
+            }
+        }
+        return addresses;
+    }
+
+    private void startTcp(Query query) {
+        log.debug(() -> "dns response for " + query.name + " truncated, retrying over tcp");
+        SocketChannel tcp = null;
+        try {
+            tcp = SocketChannel.open();
+            tcp.configureBlocking(false);
+            tcp.connect(query.upstream);
+            query.exchange = new TcpExchange(query, tcp);
+            tcp.register(selector, SelectionKey.OP_CONNECT, query.exchange);
+            query.timeout.cancel();
+            query.timeout = timers.schedule(timeoutMillis, () -> timeOut(query));
+        } catch (IOException e) {
+            log.error("couldn't open dns tcp connection: " + e.getMessage());
+            if (tcp != null) {
+                try {
+                    tcp.close();
+                } catch (IOException ignore) {
+                }
+            }
+            retry(query, Rcode.SERVFAIL);
+        }
+    }
+
+    private static class Lookup {
+        private final String name;
+        private final List<Query> active = new ArrayList<>(2);
+        private List<InetAddress> ipv4 = List.of();
+        private List<InetAddress> ipv6 = List.of();
+        private boolean ipv4Done;
+        private boolean ipv6Done;
+        private boolean delivered;
+        private int rcode = Rcode.NOERROR;
+        private long ttl = Long.MAX_VALUE;
+        private Timeout resolutionDelay;
+
+        private Lookup(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Query {
+        private final Lookup lookup;
+        private final int type;
+        private final Name name;
+        private final int hops;
+        private int id;
+        private int attempts;
+        private int upstreamIndex;
+        private InetSocketAddress upstream;
+        private Timeout timeout;
+        private byte[] wire;
+        private TcpExchange exchange;
+
+        private Query(Lookup lookup, int type, Name name, int hops) {
+            this.lookup = lookup;
+            this.type = type;
+            this.name = name;
+            this.hops = hops;
+        }
+    }
+
+    private class TcpExchange {
+        private final Query query;
+        private final SocketChannel channel;
+        private final ByteBuffer request;
+        private final ByteBuffer length = ByteBuffer.allocate(2);
+        private ByteBuffer response;
+
+        private TcpExchange(Query query, SocketChannel channel) {
+            this.query = query;
+            this.channel = channel;
+            request = ByteBuffer.allocate(2 + query.wire.length);
+            request.putShort((short) query.wire.length).put(query.wire).flip();
+        }
+
+        private void handle(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+                channel.write(request);
+                if (!request.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                read();
+            }
+        }
+
+        private void read() throws IOException {
+            if (response == null) {
+                if (channel.read(length) < 0) {
+                    throw new IOException("connection closed by dns server");
+                }
+                if (length.hasRemaining()) {
+                    return;
+                }
+                response = ByteBuffer.allocate(length.flip().getShort() & 0xFFFF);
+            }
+            if (channel.read(response) < 0) {
+                throw new IOException("connection closed by dns server");
+            }
+            if (response.hasRemaining()) {
+                return;
+            }
+            close();
+            query.exchange = null;
+            handleResponse(new Message(response.flip()), query.upstream, true);
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error(e.getMessage());
+            }
+        }
+    }
+
+}
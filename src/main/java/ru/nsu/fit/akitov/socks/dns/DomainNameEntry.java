@@ -3,8 +3,43 @@ package ru.nsu.fit.akitov.socks.dns;
 import lombok.Builder;
 
 import java.net.InetAddress;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Builder
-public record DomainNameEntry(InetAddress address, Instant expiresAt) {
+public record DomainNameEntry(List<InetAddress> addresses, long refreshAt, long expiresAt, int rcode,
+                              AtomicInteger cursor, AtomicBoolean refreshing) {
+
+    public boolean negative() {
+        return addresses.isEmpty();
+    }
+
+    public boolean expired(long now) {
+        return expiresAt <= now;
+    }
+
+    public boolean startRefresh(long now) {
+        return !negative() && refreshAt <= now && refreshing.compareAndSet(false, true);
+    }
+
+    /**
+     * The address {@link #rotatedAddresses()} would put first, without building the list.
+     */
+    public InetAddress nextAddress() {
+        return addresses.get(Math.floorMod(cursor.getAndIncrement(), addresses.size()));
+    }
+
+    public List<InetAddress> rotatedAddresses() {
+        if (addresses.size() < 2) {
+            return addresses;
+        }
+        int start = Math.floorMod(cursor.getAndIncrement(), addresses.size());
+        List<InetAddress> rotated = new ArrayList<>(addresses.size());
+        rotated.addAll(addresses.subList(start, addresses.size()));
+        rotated.addAll(addresses.subList(0, start));
+        return rotated;
+    }
+
 }
@@ -1,41 +1,236 @@
 package ru.nsu.fit.akitov.socks.dns;
 
-import lombok.AccessLevel;
-import lombok.NoArgsConstructor;
-import lombok.experimental.FieldDefaults;
+import lombok.extern.log4j.Log4j2;
+import org.xbill.DNS.Rcode;
 
 import java.net.InetAddress;
 import java.time.Duration;
-import java.time.Instant;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-@NoArgsConstructor
-public class DomainNameStorage {
+/**
+ * Bounded LRU cache of resolved names shared by all reactors. Entries live for the TTL of the answer
+ * clamped to the configured range; failed lookups are cached as negative entries for a short time.
+ * A positive entry asks to be refreshed once the given fraction of its TTL has passed, and may be
+ * served for a grace period after it expires while a fresh answer is on its way.
+ * <p>
+ * A new answer always replaces what is cached for its name. A failed lookup replaces it as well,
+ * unless the failure was transient (a server failure, refusal or timeout) and the cached entry is a
+ * positive one that may still be served: then that entry stays and its next refresh waits for the
+ * negative TTL. An authoritative denial replaces a positive entry at once.
+ * <p>
+ * Names are spread over shards that each keep their own LRU order under their own lock, so lookups
+ * from different reactors rarely meet; eviction is least recently used within a shard.
+ */
+@Log4j2
+public class DomainNameStorage implements AutoCloseable {
 
-    private static final Duration RECORD_TTL = Duration.ofHours(1);
+    private static final int SHARDS_PER_PROCESSOR = 4;
 
-    public final Map<String, DomainNameEntry> hosts = new HashMap<>();
+    private final long minTtlMillis;
+    private final long maxTtlMillis;
+    private final long negativeTtlMillis;
+    private final double refreshFraction;
+    private final long staleGraceMillis;
+    private final Shard[] shards;
+    private final ScheduledExecutorService sweeper;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
 
-    public void putDomainNameAddress(String name, InetAddress address) {
-        DomainNameEntry domainNameEntry = DomainNameEntry.builder()
-                .address(address)
-                .expiresAt(Instant.now().plus(RECORD_TTL))
-                .build();
-        hosts.put(name, domainNameEntry);
+    public DomainNameStorage(int capacity, Duration minTtl, Duration maxTtl, Duration negativeTtl,
+                             double refreshFraction, Duration staleGrace, Duration sweepInterval) {
+        minTtlMillis = minTtl.toMillis();
+        maxTtlMillis = maxTtl.toMillis();
+        negativeTtlMillis = negativeTtl.toMillis();
+        this.refreshFraction = refreshFraction;
+        staleGraceMillis = staleGrace.toMillis();
+        int shardCount = Integer.highestOneBit(Math.max(1, Math.min(capacity,
+                Runtime.getRuntime().availableProcessors() * SHARDS_PER_PROCESSOR)));
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard((capacity + shardCount - 1) / shardCount);
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::removeExpired, sweepInterval.toMillis(), sweepInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void putDomainNameAddresses(String name, List<InetAddress> addresses, long ttlSeconds) {
+        long ttl = Math.max(minTtlMillis, Math.min(maxTtlMillis, TimeUnit.SECONDS.toMillis(ttlSeconds)));
+        long now = System.currentTimeMillis();
+        put(name, DomainNameEntry.builder()
+                .addresses(List.copyOf(addresses))
+                .refreshAt(now + (long) (ttl * refreshFraction))
+                .expiresAt(now + ttl)
+                .cursor(new AtomicInteger())
+                .refreshing(new AtomicBoolean())
+                .build());
+    }
+
+    public void putNegative(String name, int rcode) {
+        long now = System.currentTimeMillis();
+        Shard shard = shardOf(name);
+        synchronized (shard) {
+            DomainNameEntry current = shard.get(name);
+            if (current != null && !current.negative() && usable(current, now) && transientFailure(rcode)) {
+                // a failed refresh must not hide an address that may still be served, nor be retried on every hit
+                shard.put(name, DomainNameEntry.builder()
+                        .addresses(current.addresses())
+                        .refreshAt(now + negativeTtlMillis)
+                        .expiresAt(current.expiresAt())
+                        .cursor(current.cursor())
+                        .refreshing(new AtomicBoolean())
+                        .build());
+                return;
+            }
+            shard.put(name, DomainNameEntry.builder()
+                    .addresses(List.of())
+                    .rcode(rcode)
+                    .expiresAt(now + negativeTtlMillis)
+                    .build());
+        }
     }
 
-    public Optional<InetAddress> getDomainNameAddress(String name) {
-        DomainNameEntry domainNameEntry = hosts.get(name);
+    public Optional<DomainNameEntry> getDomainNameEntry(String name) {
+        DomainNameEntry domainNameEntry;
+        long now = System.currentTimeMillis();
+        Shard shard = shardOf(name);
+        synchronized (shard) {
+            domainNameEntry = shard.get(name);
+            if (domainNameEntry != null && !usable(domainNameEntry, now)) {
+                shard.remove(name);
+                expirations.increment();
+                domainNameEntry = null;
+            }
+        }
         if (domainNameEntry == null) {
+            misses.increment();
             return Optional.empty();
         }
-        if (domainNameEntry.expiresAt().isBefore(Instant.now())) {
-            hosts.remove(name);
-            return Optional.empty();
+        hits.increment();
+        if (domainNameEntry.expired(now)) {
+            staleHits.increment();
+        }
+        return Optional.of(domainNameEntry);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    private void put(String name, DomainNameEntry domainNameEntry) {
+        Shard shard = shardOf(name);
+        synchronized (shard) {
+            shard.put(name, domainNameEntry);
         }
-        return Optional.of(domainNameEntry.address());
+    }
+
+    private Shard shardOf(String name) {
+        int hash = name.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+    }
+
+    // the server couldn't answer, which says nothing about the addresses it gave before
+    private static boolean transientFailure(int rcode) {
+        return rcode == Rcode.SERVFAIL || rcode == Rcode.REFUSED;
+    }
+
+    private boolean usable(DomainNameEntry domainNameEntry, long now) {
+        long grace = domainNameEntry.negative() ? 0 : staleGraceMillis;
+        return domainNameEntry.expiresAt() + grace > now;
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                Iterator<DomainNameEntry> iterator = shard.values().iterator();
+                while (iterator.hasNext()) {
+                    if (!usable(iterator.next(), now)) {
+                        iterator.remove();
+                        removed++;
+                    }
+                }
+            }
+        }
+        expirations.add(removed);
+        if (removed > 0) {
+            log.info("removed " + removed + " expired dns cache entries");
+        }
+    }
+
+    private class Shard extends LinkedHashMap<String, DomainNameEntry> {
+
+        private final int capacity;
+
+        private Shard(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DomainNameEntry> eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+            evictions.increment();
+            return true;
+        }
+
     }
 
 }
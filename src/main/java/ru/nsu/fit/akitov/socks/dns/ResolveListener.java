@@ -0,0 +1,21 @@
+package ru.nsu.fit.akitov.socks.dns;
+
+import java.net.InetAddress;
+import java.util.List;
+
+public interface ResolveListener {
+
+    /**
+     * Hands out the addresses of a name. Unless the lookup is complete, only one address family has
+     * answered so far, and {@link #onCompleted} follows once the other one has.
+     */
+    void onResolved(String name, List<InetAddress> addresses, long ttlSeconds, boolean complete);
+
+    /**
+     * Ends a lookup that was handed out incomplete, with the addresses of both families.
+     */
+    void onCompleted(String name, List<InetAddress> addresses, long ttlSeconds);
+
+    void onFailed(String name, int rcode);
+
+}
@@ -22,6 +22,10 @@ public class ResolveQueues {
         nameResolveRequiring.put(name, requiring);
     }
 
+    public boolean contains(String name) {
+        return nameResolveRequiring.containsKey(name);
+    }
+
     public Set<SelectionKey> remove(String name) {
         return nameResolveRequiring.remove(name);
     }
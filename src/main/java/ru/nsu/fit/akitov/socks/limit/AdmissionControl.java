@@ -0,0 +1,138 @@
+package ru.nsu.fit.akitov.socks.limit;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits on how much work the proxy takes on at once: open client connections in total and per
+ * client address, and lookups and connection attempts in flight. The acceptor stops accepting while
+ * the proxy is full and resumes once enough connections have closed; a client over its own limit or
+ * a request over the lookup or connect limit is turned away at once. A limit of 0 means none.
+ */
+public class AdmissionControl {
+
+    public enum Decision {
+        ADMITTED,
+        CLIENT_LIMIT,
+        DNS_LIMIT,
+        CONNECT_LIMIT
+    }
+
+    private static final class Count {
+        int value;
+    }
+
+    private final int maxConnections;
+    private final int resumeAt;
+    private final int maxConnectionsPerClient;
+    private final int maxPendingLookups;
+    private final int maxPendingConnects;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger pendingLookups = new AtomicInteger();
+    private final AtomicInteger pendingConnects = new AtomicInteger();
+    private final LongMap<Count> connectionsByClient = new LongMap<>();
+    private final AtomicBoolean paused = new AtomicBoolean();
+    private final Runnable onResume;
+
+    /**
+     * @param onResume called on a closing connection's thread once a paused acceptor may go on
+     */
+    public AdmissionControl(int maxConnections, int maxConnectionsPerClient, int maxPendingLookups,
+                            int maxPendingConnects, Runnable onResume) {
+        this.maxConnections = maxConnections;
+        // some room has to free up before accepting again, so that a full proxy doesn't flap
+        resumeAt = maxConnections - Math.max(1, maxConnections / 10);
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+        this.maxPendingLookups = maxPendingLookups;
+        this.maxPendingConnects = maxPendingConnects;
+        this.onResume = onResume;
+    }
+
+    /**
+     * Whether the acceptor has to stop. After it returned {@code true}, the resume callback is called
+     * once enough connections have closed.
+     */
+    public boolean pauseIfFull() {
+        if (maxConnections == 0 || connections.get() < maxConnections) {
+            return false;
+        }
+        paused.set(true);
+        // a connection may have closed before the flag was seen
+        return !(connections.get() <= resumeAt && paused.compareAndSet(true, false));
+    }
+
+    /**
+     * Counts a connection an acceptor has just taken, unless its client is at its limit. With several
+     * acceptors the total may exceed the limit by one connection per acceptor.
+     */
+    public Decision admit(InetAddress client) {
+        if (maxConnectionsPerClient > 0) {
+            synchronized (connectionsByClient) {
+                long key = ClientKey.of(client);
+                Count count = connectionsByClient.get(key);
+                if (count == null) {
+                    count = new Count();
+                    connectionsByClient.put(key, count);
+                } else if (count.value >= maxConnectionsPerClient) {
+                    return Decision.CLIENT_LIMIT;
+                }
+                count.value++;
+            }
+        }
+        connections.incrementAndGet();
+        return Decision.ADMITTED;
+    }
+
+    public void release(InetAddress client) {
+        if (maxConnectionsPerClient > 0) {
+            synchronized (connectionsByClient) {
+                long key = ClientKey.of(client);
+                Count count = connectionsByClient.get(key);
+                if (count != null && --count.value == 0) {
+                    connectionsByClient.remove(key);
+                }
+            }
+        }
+        if (connections.decrementAndGet() <= resumeAt && paused.get() && paused.compareAndSet(true, false)) {
+            onResume.run();
+        }
+    }
+
+    public boolean tryStartLookup() {
+        return tryAcquire(pendingLookups, maxPendingLookups);
+    }
+
+    public void finishLookup() {
+        pendingLookups.decrementAndGet();
+    }
+
+    public boolean tryStartConnect() {
+        return tryAcquire(pendingConnects, maxPendingConnects);
+    }
+
+    public void finishConnect() {
+        pendingConnects.decrementAndGet();
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public int getPendingLookups() {
+        return pendingLookups.get();
+    }
+
+    public int getPendingConnects() {
+        return pendingConnects.get();
+    }
+
+    private static boolean tryAcquire(AtomicInteger pending, int max) {
+        if (pending.incrementAndGet() <= max || max == 0) {
+            return true;
+        }
+        pending.decrementAndGet();
+        return false;
+    }
+
+}
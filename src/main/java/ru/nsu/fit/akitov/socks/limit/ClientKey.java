@@ -0,0 +1,24 @@
+package ru.nsu.fit.akitov.socks.limit;
+
+import lombok.experimental.UtilityClass;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Primitive key a client is known by in per-client tables.
+ */
+@UtilityClass
+class ClientKey {
+
+    // an IPv6 host usually owns a whole /64, so all of it counts as one client
+    long of(InetAddress address) {
+        byte[] raw = address.getAddress();
+        if (address instanceof Inet4Address) {
+            return 0xFFFF_0000_0000L | (ByteBuffer.wrap(raw).getInt() & 0xFFFF_FFFFL);
+        }
+        return ByteBuffer.wrap(raw).getLong();
+    }
+
+}
@@ -0,0 +1,111 @@
+package ru.nsu.fit.akitov.socks.limit;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bandwidth limits shared by all reactors: one bucket per client address, one per authenticated user
+ * and one for the whole proxy, each a cap on the traffic of the ones below it. A tunnel looks its
+ * buckets up once when it is established and charges every byte it reads to all of them; buckets
+ * nobody uses any more are dropped once they have refilled.
+ */
+public class RateLimiter implements AutoCloseable {
+
+    private static final TokenBucket[] NO_BUCKETS = new TokenBucket[0];
+
+    private final long clientRate;
+    private final long userRate;
+    private final long burstMillis;
+    private final TokenBucket global;
+    private final LongMap<TokenBucket> clients = new LongMap<>();
+    private final Map<String, TokenBucket> users = new HashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * Rates are in bytes per second, 0 meaning no limit at that level.
+     */
+    public RateLimiter(long globalRate, long clientRate, long userRate, Duration burst, Duration sweepInterval) {
+        this.clientRate = clientRate;
+        this.userRate = userRate;
+        burstMillis = burst.toMillis();
+        global = globalRate > 0 ? new TokenBucket(globalRate, burstMillis, System.nanoTime()) : null;
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rate-limit-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::removeUnused, sweepInterval.toMillis(), sweepInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Buckets a tunnel of the given client is charged to, to be handed back with {@link #release}.
+     * The user is {@code null} for clients that didn't authenticate.
+     */
+    public synchronized TokenBucket[] acquire(InetAddress client, String user) {
+        TokenBucket[] buckets = new TokenBucket[3];
+        int count = 0;
+        long now = System.nanoTime();
+        if (clientRate > 0) {
+            long key = ClientKey.of(client);
+            TokenBucket bucket = clients.get(key);
+            if (bucket == null) {
+                bucket = new TokenBucket(clientRate, burstMillis, now);
+                clients.put(key, bucket);
+            }
+            bucket.users++;
+            buckets[count++] = bucket;
+        }
+        if (userRate > 0 && user != null) {
+            TokenBucket bucket = users.computeIfAbsent(user, name -> new TokenBucket(userRate, burstMillis, now));
+            bucket.users++;
+            buckets[count++] = bucket;
+        }
+        if (global != null) {
+            // never swept, but counted like the others so that release keeps every count balanced
+            global.users++;
+            buckets[count++] = global;
+        }
+        if (count == 0) {
+            return NO_BUCKETS;
+        }
+        return count == buckets.length ? buckets : Arrays.copyOf(buckets, count);
+    }
+
+    public synchronized void release(TokenBucket[] buckets) {
+        for (TokenBucket bucket : buckets) {
+            bucket.users--;
+        }
+    }
+
+    /**
+     * Charges bytes read by a tunnel. Returns how many nanoseconds the tunnel should stop reading for,
+     * 0 if every bucket still had room.
+     */
+    public long take(TokenBucket[] buckets, long bytes) {
+        long now = System.nanoTime();
+        long wait = 0;
+        for (TokenBucket bucket : buckets) {
+            wait = Math.max(wait, bucket.take(bytes, now));
+        }
+        return wait;
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    private synchronized void removeUnused() {
+        long now = System.nanoTime();
+        clients.removeIf(bucket -> bucket.users == 0 && bucket.isFull(now));
+        users.values().removeIf(bucket -> bucket.users == 0 && bucket.isFull(now));
+    }
+
+}
@@ -0,0 +1,44 @@
+package ru.nsu.fit.akitov.socks.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket kept as a single timestamp: the moment the bucket will be full again. Taking tokens
+ * moves that moment forward by the time the bytes are worth at the configured rate, so reactors share
+ * a bucket with one compare-and-set and nothing has to refill it in the background.
+ */
+public class TokenBucket {
+
+    private final long bytesPerSecond;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+    // tunnels currently charged to the bucket, guarded by the owning limiter
+    int users;
+
+    public TokenBucket(long bytesPerSecond, long burstMillis, long now) {
+        this.bytesPerSecond = bytesPerSecond;
+        burstNanos = TimeUnit.MILLISECONDS.toNanos(burstMillis);
+        fullAt = new AtomicLong(now);
+    }
+
+    /**
+     * Takes the given number of bytes, going into debt if the bucket doesn't hold that many. Returns
+     * how many nanoseconds the caller should wait before reading again, 0 if it may go on.
+     */
+    public long take(long bytes, long now) {
+        long cost = bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        long previous;
+        long next;
+        do {
+            previous = fullAt.get();
+            next = Math.max(previous, now) + cost;
+        } while (!fullAt.compareAndSet(previous, next));
+        return Math.max(0, next - now - burstNanos);
+    }
+
+    boolean isFull(long now) {
+        return fullAt.get() <= now;
+    }
+
+}
@@ -0,0 +1,104 @@
+package ru.nsu.fit.akitov.socks.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in microseconds. Buckets are logarithmic with four per power of
+ * two, which bounds the error of a percentile to about 19%; each bucket is a striped counter, so
+ * reactors recording at the same time don't contend.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int POWERS = 40;
+    private static final int BUCKETS = POWERS * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void recordNanos(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        counts[bucketOf(micros)].increment();
+        sum.add(micros);
+    }
+
+    public long count() {
+        long total = 0;
+        for (LongAdder count : counts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    public long sumMicros() {
+        return sum.sum();
+    }
+
+    public long percentileMicros(double percentile) {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBoundMicros(i);
+            }
+        }
+        return upperBoundMicros(BUCKETS - 1);
+    }
+
+    /**
+     * Number of recorded values below 2^(i + 1) microseconds at each index i.
+     */
+    public long[] cumulativeByPowerOfTwo() {
+        long[] snapshot = snapshot();
+        long[] result = new long[POWERS];
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (i % SUB_BUCKETS == SUB_BUCKETS - 1) {
+                result[i / SUB_BUCKETS] = seen;
+            }
+        }
+        return result;
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+        }
+        return snapshot;
+    }
+
+    private static int bucketOf(long micros) {
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        int fraction = power < SUB_BUCKET_BITS ? 0
+                : (int) ((micros >>> (power - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return Math.min(BUCKETS - 1, power * SUB_BUCKETS + fraction);
+    }
+
+    private static long upperBoundMicros(int bucket) {
+        int power = bucket / SUB_BUCKETS;
+        int fraction = bucket % SUB_BUCKETS;
+        if (power < SUB_BUCKET_BITS) {
+            return (2L << power) - 1;
+        }
+        return ((long) (SUB_BUCKETS + fraction + 1) << (power - SUB_BUCKET_BITS)) - 1;
+    }
+
+}
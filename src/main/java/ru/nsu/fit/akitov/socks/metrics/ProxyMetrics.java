@@ -0,0 +1,290 @@
+package ru.nsu.fit.akitov.socks.metrics;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import ru.nsu.fit.akitov.socks.ChannelState;
+import ru.nsu.fit.akitov.socks.buffer.BufferPool;
+import ru.nsu.fit.akitov.socks.buffer.MemoryBudget;
+import ru.nsu.fit.akitov.socks.dns.DomainNameStorage;
+import ru.nsu.fit.akitov.socks.limit.AdmissionControl;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms shared by all reactors. Everything is updated through striped adders, so
+ * recording costs a few uncontended increments and the metrics can stay on under full load; the
+ * sums are only taken when somebody reads them.
+ */
+@Log4j2
+public class ProxyMetrics implements ProxyMetricsMXBean {
+
+    private static final String OBJECT_NAME = "ru.nsu.fit.akitov.socks:type=Metrics";
+    private static final int REPLY_CODES = 256;
+    private static final double P99 = 99;
+
+    private final LongAdder accepts = new LongAdder();
+    private final LongAdder[] connections = new LongAdder[ChannelState.values().length];
+    private final LongAdder bytesUpstream = new LongAdder();
+    private final LongAdder bytesDownstream = new LongAdder();
+    private final LongAdder[] errors = new LongAdder[REPLY_CODES];
+    private final LongAdder[] admissions = new LongAdder[AdmissionControl.Decision.values().length];
+    private final LongAdder acceptPauses = new LongAdder();
+    @Getter
+    private final Histogram handshakeLatency = new Histogram();
+    @Getter
+    private final Histogram dnsLatency = new Histogram();
+    @Getter
+    private final Histogram connectLatency = new Histogram();
+    @Getter
+    private final Histogram selectorLoopTime = new Histogram();
+    private final DomainNameStorage domainNameStorage;
+    private final MemoryBudget bufferBudget;
+    private final List<BufferPool> bufferPools = new CopyOnWriteArrayList<>();
+
+    public ProxyMetrics(DomainNameStorage domainNameStorage, MemoryBudget bufferBudget) {
+        this.domainNameStorage = domainNameStorage;
+        this.bufferBudget = bufferBudget;
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new LongAdder();
+        }
+        for (int i = 0; i < REPLY_CODES; i++) {
+            errors[i] = new LongAdder();
+        }
+        for (int i = 0; i < admissions.length; i++) {
+            admissions[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Exposes the metrics through the platform MBean server. A failure only costs the JMX view.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.error("couldn't register metrics mbean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the lease counters of a reactor's buffer pool to the reported ones.
+     */
+    public void register(BufferPool bufferPool) {
+        bufferPools.add(bufferPool);
+    }
+
+    public void accepted() {
+        accepts.increment();
+    }
+
+    /**
+     * Moves a client connection between states, {@code null} standing for not being open.
+     */
+    public void transition(ChannelState from, ChannelState to) {
+        if (from == to) {
+            return;
+        }
+        if (from != null) {
+            connections[from.ordinal()].decrement();
+        }
+        if (to != null) {
+            connections[to.ordinal()].increment();
+        }
+    }
+
+    public void relayed(boolean upstream, long bytes) {
+        (upstream ? bytesUpstream : bytesDownstream).add(bytes);
+    }
+
+    public void error(byte replyCode) {
+        errors[replyCode & 0xFF].increment();
+    }
+
+    public void admission(AdmissionControl.Decision decision) {
+        admissions[decision.ordinal()].increment();
+    }
+
+    public void acceptPaused() {
+        acceptPauses.increment();
+    }
+
+    @Override
+    public long getAccepts() {
+        return accepts.sum();
+    }
+
+    @Override
+    public long getAuthorizingConnections() {
+        return connections(ChannelState.AUTHORIZING);
+    }
+
+    @Override
+    public long getConnectingConnections() {
+        return connections(ChannelState.CONNECTING);
+    }
+
+    @Override
+    public long getProxyingConnections() {
+        return connections(ChannelState.PROXYING);
+    }
+
+    @Override
+    public long getBytesUpstream() {
+        return bytesUpstream.sum();
+    }
+
+    @Override
+    public long getBytesDownstream() {
+        return bytesDownstream.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        long total = 0;
+        for (LongAdder count : errors) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getAdmissionRejections() {
+        long total = 0;
+        for (AdmissionControl.Decision decision : AdmissionControl.Decision.values()) {
+            if (decision != AdmissionControl.Decision.ADMITTED) {
+                total += admissions[decision.ordinal()].sum();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getAcceptPauses() {
+        return acceptPauses.sum();
+    }
+
+    @Override
+    public double getDnsCacheHitRatio() {
+        return domainNameStorage.getHitRate();
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        return bufferPools.stream().mapToLong(BufferPool::getHits).sum();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return bufferPools.stream().mapToLong(BufferPool::getMisses).sum();
+    }
+
+    @Override
+    public long getBufferPoolFallbacks() {
+        return bufferPools.stream().mapToLong(BufferPool::getFallbacks).sum();
+    }
+
+    @Override
+    public long getBufferMemoryUsed() {
+        return bufferBudget.getUsed();
+    }
+
+    @Override
+    public long getHandshakeP99Micros() {
+        return handshakeLatency.percentileMicros(P99);
+    }
+
+    @Override
+    public long getDnsP99Micros() {
+        return dnsLatency.percentileMicros(P99);
+    }
+
+    @Override
+    public long getConnectP99Micros() {
+        return connectLatency.percentileMicros(P99);
+    }
+
+    @Override
+    public long getSelectorLoopP99Micros() {
+        return selectorLoopTime.percentileMicros(P99);
+    }
+
+    private long connections(ChannelState state) {
+        return connections[state.ordinal()].sum();
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(16384);
+        header(out, "socks_accepts_total", "Accepted client connections", "counter");
+        out.append("socks_accepts_total ").append(getAccepts()).append('\n');
+        header(out, "socks_connections", "Open client connections by state", "gauge");
+        for (ChannelState state : ChannelState.values()) {
+            out.append("socks_connections{state=\"").append(state.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                    .append(connections(state)).append('\n');
+        }
+        header(out, "socks_relayed_bytes_total", "Bytes relayed through tunnels by direction", "counter");
+        out.append("socks_relayed_bytes_total{direction=\"upstream\"} ").append(getBytesUpstream()).append('\n');
+        out.append("socks_relayed_bytes_total{direction=\"downstream\"} ").append(getBytesDownstream()).append('\n');
+        header(out, "socks_errors_total", "Failure replies sent to clients by SOCKS reply code", "counter");
+        for (int code = 1; code < REPLY_CODES; code++) {
+            long count = errors[code].sum();
+            if (count > 0) {
+                out.append("socks_errors_total{code=\"").append(code).append("\"} ").append(count).append('\n');
+            }
+        }
+        header(out, "socks_admissions_total", "Admission decisions on connections and requests", "counter");
+        for (AdmissionControl.Decision decision : AdmissionControl.Decision.values()) {
+            out.append("socks_admissions_total{decision=\"").append(decision.name().toLowerCase(Locale.ROOT))
+                    .append("\"} ").append(admissions[decision.ordinal()].sum()).append('\n');
+        }
+        header(out, "socks_accept_pauses_total", "Times accepting stopped because the proxy was full", "counter");
+        out.append("socks_accept_pauses_total ").append(getAcceptPauses()).append('\n');
+        header(out, "socks_dns_cache_hit_ratio", "Share of DNS cache lookups answered from the cache", "gauge");
+        out.append("socks_dns_cache_hit_ratio ").append(getDnsCacheHitRatio()).append('\n');
+        header(out, "socks_dns_cache_entries", "Names in the DNS cache", "gauge");
+        out.append("socks_dns_cache_entries ").append(domainNameStorage.size()).append('\n');
+        header(out, "socks_buffer_leases_total",
+                "Relay buffer leases by whether a pooled, a new direct or, past the budget, a heap buffer served them",
+                "counter");
+        out.append("socks_buffer_leases_total{result=\"hit\"} ").append(getBufferPoolHits()).append('\n');
+        out.append("socks_buffer_leases_total{result=\"miss\"} ").append(getBufferPoolMisses()).append('\n');
+        out.append("socks_buffer_leases_total{result=\"fallback\"} ").append(getBufferPoolFallbacks()).append('\n');
+        header(out, "socks_buffer_memory_bytes", "Direct memory held by relay buffers, pooled ones included", "gauge");
+        out.append("socks_buffer_memory_bytes ").append(getBufferMemoryUsed()).append('\n');
+        header(out, "socks_buffer_memory_limit_bytes", "Direct memory relay buffers may hold", "gauge");
+        out.append("socks_buffer_memory_limit_bytes ").append(bufferBudget.getLimit()).append('\n');
+        histogram(out, "socks_handshake_seconds", "Time from accept to a parsed request", handshakeLatency);
+        histogram(out, "socks_dns_seconds", "Time to resolve a requested name that missed the cache", dnsLatency);
+        histogram(out, "socks_connect_seconds", "Time to connect to a destination", connectLatency);
+        histogram(out, "socks_selector_loop_seconds", "Time spent handling one selector wakeup", selectorLoopTime);
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // buckets are the histogram's powers of two, so the exported bounds are exact
+    private static void histogram(StringBuilder out, String name, String help, Histogram histogram) {
+        header(out, name, help, "histogram");
+        long[] cumulative = histogram.cumulativeByPowerOfTwo();
+        for (int i = 0; i < cumulative.length; i++) {
+            out.append(name).append("_bucket{le=\"").append((double) (1L << (i + 1)) / 1_000_000).append("\"} ")
+                    .append(cumulative[i]).append('\n');
+        }
+        long count = cumulative[cumulative.length - 1];
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum ").append(histogram.sumMicros() / 1e6).append('\n');
+        out.append(name).append("_count ").append(count).append('\n');
+    }
+
+}
@@ -0,0 +1,44 @@
+package ru.nsu.fit.akitov.socks.metrics;
+
+/**
+ * JMX view of {@link ProxyMetrics}. Latencies are reported as 99th percentiles in microseconds.
+ */
+public interface ProxyMetricsMXBean {
+
+    long getAccepts();
+
+    long getAuthorizingConnections();
+
+    long getConnectingConnections();
+
+    long getProxyingConnections();
+
+    long getBytesUpstream();
+
+    long getBytesDownstream();
+
+    long getErrors();
+
+    long getAdmissionRejections();
+
+    long getAcceptPauses();
+
+    double getDnsCacheHitRatio();
+
+    long getBufferPoolHits();
+
+    long getBufferPoolMisses();
+
+    long getBufferPoolFallbacks();
+
+    long getBufferMemoryUsed();
+
+    long getHandshakeP99Micros();
+
+    long getDnsP99Micros();
+
+    long getConnectP99Micros();
+
+    long getSelectorLoopP99Micros();
+
+}
@@ -0,0 +1,267 @@
+package ru.nsu.fit.akitov.socks.msg;
+
+import ru.nsu.fit.akitov.socks.SocksConfiguration;
+import ru.nsu.fit.akitov.socks.msg.auth.AuthMethod;
+import ru.nsu.fit.akitov.socks.msg.connection.AddressType;
+import ru.nsu.fit.akitov.socks.msg.connection.ConnectionRequest;
+import ru.nsu.fit.akitov.socks.msg.connection.SocksCommand;
+import ru.nsu.fit.akitov.socks.msg.exception.AddressNotSupportedException;
+import ru.nsu.fit.akitov.socks.msg.exception.CommandNotSupportedException;
+import ru.nsu.fit.akitov.socks.msg.exception.SocksException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Resumable parser for the client side of a SOCKS5 handshake: the method greeting, the RFC 1929
+ * username/password exchange if that method was chosen, and the request. It consumes whatever part of
+ * a message has arrived and remembers where it stopped, so messages split across segments and a
+ * greeting pipelined with its request are both handled.
+ * <p>
+ * A parser is meant to be reused: {@link #reset()} readies it for the next connection, so its
+ * scratch arrays are allocated once and the only allocation per handshake is the finished request.
+ */
+public class HandshakeParser {
+
+    public enum Result {
+        NEED_MORE,
+        GREETING,
+        CREDENTIALS,
+        REQUEST
+    }
+
+    private enum Phase {
+        VERSION,
+        METHOD_COUNT,
+        METHODS,
+        AUTH_VERSION,
+        USERNAME_LENGTH,
+        USERNAME,
+        PASSWORD_LENGTH,
+        PASSWORD,
+        REQUEST_VERSION,
+        COMMAND,
+        RESERVED,
+        ADDRESS_TYPE,
+        DOMAIN_LENGTH,
+        ADDRESS,
+        PORT,
+        DONE
+    }
+
+    private static final int MAX_RAW_ADDRESS_LENGTH = 256;
+    private static final int MAX_CREDENTIAL_LENGTH = 255;
+
+    private final long[] offeredMethods = new long[4];
+    private final byte[] rawAddress = new byte[MAX_RAW_ADDRESS_LENGTH];
+    private Phase phase = Phase.VERSION;
+    private int remaining;
+    private SocksCommand command;
+    private AddressType addressType;
+    private int addressLength;
+    private int port;
+    private byte[] username;
+    private int usernameLength;
+    private byte[] password;
+    private int passwordLength;
+
+    /**
+     * Consumes bytes up to the end of the current message. Returns the kind of message once it is
+     * complete, leaving the bytes after it in the buffer.
+     */
+    public Result parse(ByteBuffer buffer) throws SocksException {
+        while (buffer.hasRemaining()) {
+            switch (phase) {
+                case VERSION -> {
+                    checkVersion(buffer.get());
+                    phase = Phase.METHOD_COUNT;
+                }
+                case METHOD_COUNT -> {
+                    remaining = buffer.get() & 0xFF;
+                    if (remaining == 0) {
+                        phase = Phase.REQUEST_VERSION;
+                        return Result.GREETING;
+                    }
+                    phase = Phase.METHODS;
+                }
+                case METHODS -> {
+                    int method = buffer.get() & 0xFF;
+                    offeredMethods[method >>> 6] |= 1L << (method & 63);
+                    if (--remaining == 0) {
+                        phase = Phase.REQUEST_VERSION;
+                        return Result.GREETING;
+                    }
+                }
+                case AUTH_VERSION -> {
+                    byte version = buffer.get();
+                    if (version != SocksConfiguration.AUTH_VERSION) {
+                        throw new SocksException("username/password auth version " + version + " is not supported");
+                    }
+                    phase = Phase.USERNAME_LENGTH;
+                }
+                case USERNAME_LENGTH -> {
+                    remaining = buffer.get() & 0xFF;
+                    phase = remaining == 0 ? Phase.PASSWORD_LENGTH : Phase.USERNAME;
+                }
+                case USERNAME -> {
+                    int chunk = Math.min(remaining, buffer.remaining());
+                    buffer.get(username, usernameLength, chunk);
+                    usernameLength += chunk;
+                    remaining -= chunk;
+                    if (remaining == 0) {
+                        phase = Phase.PASSWORD_LENGTH;
+                    }
+                }
+                case PASSWORD_LENGTH -> {
+                    remaining = buffer.get() & 0xFF;
+                    if (remaining == 0) {
+                        phase = Phase.REQUEST_VERSION;
+                        return Result.CREDENTIALS;
+                    }
+                    phase = Phase.PASSWORD;
+                }
+                case PASSWORD -> {
+                    int chunk = Math.min(remaining, buffer.remaining());
+                    buffer.get(password, passwordLength, chunk);
+                    passwordLength += chunk;
+                    remaining -= chunk;
+                    if (remaining == 0) {
+                        phase = Phase.REQUEST_VERSION;
+                        return Result.CREDENTIALS;
+                    }
+                }
+                case REQUEST_VERSION -> {
+                    checkVersion(buffer.get());
+                    phase = Phase.COMMAND;
+                }
+                case COMMAND -> {
+                    command = SocksCommand.of(buffer.get());
+                    phase = Phase.RESERVED;
+                }
+                case RESERVED -> {
+                    if (buffer.get() != 0) {
+                        throw new SocksException("reserved byte is not zero");
+                    }
+                    phase = Phase.ADDRESS_TYPE;
+                }
+                case ADDRESS_TYPE -> readAddressType(buffer.get());
+                case DOMAIN_LENGTH -> {
+                    byte length = buffer.get();
+                    if (length == 0) {
+                        throw new AddressNotSupportedException("domain name is empty");
+                    }
+                    rawAddress[addressLength++] = length;
+                    remaining = length & 0xFF;
+                    phase = Phase.ADDRESS;
+                }
+                case ADDRESS -> {
+                    int chunk = Math.min(remaining, buffer.remaining());
+                    buffer.get(rawAddress, addressLength, chunk);
+                    addressLength += chunk;
+                    remaining -= chunk;
+                    if (remaining == 0) {
+                        remaining = 2;
+                        phase = Phase.PORT;
+                    }
+                }
+                case PORT -> {
+                    port = (port << 8) | (buffer.get() & 0xFF);
+                    if (--remaining == 0) {
+                        phase = Phase.DONE;
+                        return Result.REQUEST;
+                    }
+                }
+                case DONE -> {
+                    return Result.NEED_MORE;
+                }
+            }
+        }
+        return Result.NEED_MORE;
+    }
+
+    /**
+     * Makes the parser read a username/password request before the connection request, to be called
+     * once that method has been chosen in reply to the greeting.
+     */
+    public void expectCredentials() {
+        if (username == null) {
+            username = new byte[MAX_CREDENTIAL_LENGTH];
+            password = new byte[MAX_CREDENTIAL_LENGTH];
+        }
+        phase = Phase.AUTH_VERSION;
+    }
+
+    /**
+     * Forgets the handshake parsed so far, wiping a password that wasn't taken.
+     */
+    public void reset() {
+        phase = Phase.VERSION;
+        remaining = 0;
+        command = null;
+        addressType = null;
+        addressLength = 0;
+        port = 0;
+        usernameLength = 0;
+        if (password != null) {
+            Arrays.fill(password, 0, passwordLength, (byte) 0);
+        }
+        passwordLength = 0;
+        Arrays.fill(offeredMethods, 0);
+    }
+
+    public String username() {
+        return new String(username, 0, usernameLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hands out the received password and wipes it from the parser.
+     */
+    public byte[] takePassword() {
+        byte[] result = Arrays.copyOf(password, passwordLength);
+        Arrays.fill(password, 0, passwordLength, (byte) 0);
+        return result;
+    }
+
+    public boolean isOffered(AuthMethod method) {
+        int representation = method.getRepresentation() & 0xFF;
+        return (offeredMethods[representation >>> 6] & (1L << (representation & 63))) != 0;
+    }
+
+    public boolean isGreetingDone() {
+        return phase.compareTo(Phase.REQUEST_VERSION) >= 0;
+    }
+
+    /**
+     * Builds the parsed request; it outlives the parser, so the address is copied out of it.
+     */
+    public ConnectionRequest request() {
+        return new ConnectionRequest(command, addressType, Arrays.copyOf(rawAddress, addressLength), port);
+    }
+
+    private void readAddressType(byte representation) throws AddressNotSupportedException {
+        try {
+            addressType = AddressType.of(representation);
+        } catch (IllegalArgumentException e) {
+            throw new AddressNotSupportedException(e.getMessage());
+        }
+        switch (addressType) {
+            case IPv4 -> {
+                remaining = 4;
+                phase = Phase.ADDRESS;
+            }
+            case IPv6 -> {
+                remaining = 16;
+                phase = Phase.ADDRESS;
+            }
+            case DOMAIN -> phase = Phase.DOMAIN_LENGTH;
+        }
+    }
+
+    private static void checkVersion(byte version) throws SocksException {
+        if (version != SocksConfiguration.VERSION) {
+            throw new SocksException("SOCKS" + version + " is not supported");
+        }
+    }
+
+}
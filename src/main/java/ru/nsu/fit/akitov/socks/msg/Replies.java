@@ -0,0 +1,78 @@
+package ru.nsu.fit.akitov.socks.msg;
+
+import lombok.experimental.UtilityClass;
+import ru.nsu.fit.akitov.socks.SocksConfiguration;
+import ru.nsu.fit.akitov.socks.msg.auth.AuthMethod;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of the server side of the handshake. Method choices and failure replies never change, so
+ * they are built once and handed out as read-only views; only the success reply carries data.
+ */
+@UtilityClass
+public class Replies {
+
+    private final int FAILURE_REPLY_LENGTH = 10;
+
+    private final ByteBuffer[] METHOD_CHOICES = encodeMethodChoices();
+    private final ByteBuffer[] FAILURES = encodeFailures();
+    private final ByteBuffer AUTH_SUCCESS = encodeAuthStatus(SocksConfiguration.AUTH_SUCCESS);
+    private final ByteBuffer AUTH_FAILURE = encodeAuthStatus(SocksConfiguration.AUTH_FAILURE);
+
+    public ByteBuffer methodChoice(AuthMethod method) {
+        return METHOD_CHOICES[method.ordinal()].duplicate();
+    }
+
+    public ByteBuffer authStatus(boolean success) {
+        return (success ? AUTH_SUCCESS : AUTH_FAILURE).duplicate();
+    }
+
+    public ByteBuffer failure(byte status) {
+        return FAILURES[status].duplicate();
+    }
+
+    /**
+     * Appends a granted reply naming the address the proxy is bound to for this tunnel.
+     */
+    public void putSuccess(ByteBuffer buffer, InetSocketAddress bound) {
+        InetAddress address = bound.getAddress();
+        buffer.put(SocksConfiguration.VERSION);
+        buffer.put(SocksConfiguration.STATUS_GRANTED);
+        buffer.put((byte) 0);
+        buffer.put(address instanceof Inet4Address ? SocksConfiguration.ADDRESS_IPv4 : SocksConfiguration.ADDRESS_IPv6);
+        buffer.put(address.getAddress());
+        buffer.putShort((short) bound.getPort());
+    }
+
+    private ByteBuffer[] encodeMethodChoices() {
+        ByteBuffer[] result = new ByteBuffer[AuthMethod.values().length];
+        for (AuthMethod method : AuthMethod.values()) {
+            result[method.ordinal()] = ByteBuffer.wrap(new byte[]{SocksConfiguration.VERSION, method.getRepresentation()})
+                    .asReadOnlyBuffer();
+        }
+        return result;
+    }
+
+    private ByteBuffer encodeAuthStatus(byte status) {
+        return ByteBuffer.wrap(new byte[]{SocksConfiguration.AUTH_VERSION, status}).asReadOnlyBuffer();
+    }
+
+    private ByteBuffer[] encodeFailures() {
+        ByteBuffer[] result = new ByteBuffer[SocksConfiguration.STATUS_ADDRESS_NOT_SUPPORTED + 1];
+        for (int status = SocksConfiguration.STATUS_GENERAL_FAILURE; status < result.length; status++) {
+            // failures name no bound address, so it is left as 0.0.0.0:0
+            ByteBuffer reply = ByteBuffer.allocate(FAILURE_REPLY_LENGTH);
+            reply.put(SocksConfiguration.VERSION);
+            reply.put((byte) status);
+            reply.put((byte) 0);
+            reply.put(SocksConfiguration.ADDRESS_IPv4);
+            result[status] = reply.clear().asReadOnlyBuffer();
+        }
+        return result;
+    }
+
+}
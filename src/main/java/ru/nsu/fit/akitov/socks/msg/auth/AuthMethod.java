@@ -10,6 +10,7 @@ import ru.nsu.fit.akitov.socks.msg.exception.AuthMethodNotSupportedException;
 public enum AuthMethod {
 
     NO_AUTH(SocksConfiguration.NO_AUTH),
+    USERNAME_PASSWORD(SocksConfiguration.USERNAME_PASSWORD),
     NO_ACCEPTABLE_METHOD(SocksConfiguration.AUTH_NO_ACCEPTABLE);
 
     public static AuthMethod of(byte representation) throws AuthMethodNotSupportedException {
@@ -3,10 +3,10 @@ package ru.nsu.fit.akitov.socks.msg.auth;
 import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Getter;
-import ru.nsu.fit.akitov.socks.SocksConfiguration;
+import ru.nsu.fit.akitov.socks.msg.HandshakeParser;
+import ru.nsu.fit.akitov.socks.msg.Replies;
 
 import java.nio.ByteBuffer;
-import java.util.List;
 
 @Builder(access = AccessLevel.PRIVATE)
 @Getter
@@ -14,10 +14,14 @@ public class AuthMethodChoice {
 
     private AuthMethod chosen;
 
-    public static AuthMethodChoice choose(List<AuthMethod> authMethods) {
+    /**
+     * Picks username/password when credentials are required, and no authentication otherwise.
+     */
+    public static AuthMethodChoice choose(HandshakeParser greeting, boolean credentialsRequired) {
         AuthMethod method;
-        if (authMethods.contains(AuthMethod.NO_AUTH)) {
-            method = AuthMethod.NO_AUTH;
+        AuthMethod required = credentialsRequired ? AuthMethod.USERNAME_PASSWORD : AuthMethod.NO_AUTH;
+        if (greeting.isOffered(required)) {
+            method = required;
         } else {
             method = AuthMethod.NO_ACCEPTABLE_METHOD;
         }
@@ -27,7 +31,7 @@ public class AuthMethodChoice {
     }
 
     public ByteBuffer toByteBuffer() {
-        return ByteBuffer.wrap(new byte[] { SocksConfiguration.VERSION, chosen.getRepresentation() });
+        return Replies.methodChoice(chosen);
     }
 
 }
@@ -13,7 +13,7 @@ public enum AddressType {
     DOMAIN(SocksConfiguration.ADDRESS_DOMAIN);
 
     public static AddressType of(byte representation) {
-        for (AddressType type : AddressType.values()) {
+        for (AddressType type : VALUES) {
             if (type.representation == representation) {
                 return type;
             }
@@ -21,6 +21,9 @@ public enum AddressType {
         throw new IllegalArgumentException("address type is not supported");
     }
 
+    // values() copies the array on every call
+    private static final AddressType[] VALUES = values();
+
     private final byte representation;
 
 }
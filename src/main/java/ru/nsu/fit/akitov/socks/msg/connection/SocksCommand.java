@@ -9,10 +9,12 @@ import ru.nsu.fit.akitov.socks.msg.exception.CommandNotSupportedException;
 @AllArgsConstructor
 public enum SocksCommand {
 
-    TCP_CONNECT(SocksConfiguration.CMD_TCP_CONNECT);
+    TCP_CONNECT(SocksConfiguration.CMD_TCP_CONNECT),
+    BIND(SocksConfiguration.CMD_BIND),
+    UDP_ASSOCIATE(SocksConfiguration.CMD_UDP_ASSOCIATE);
 
     public static SocksCommand of(byte representation) throws CommandNotSupportedException {
-        for (SocksCommand command : SocksCommand.values()) {
+        for (SocksCommand command : VALUES) {
             if (command.representation == representation) {
                 return command;
             }
@@ -20,6 +22,9 @@ public enum SocksCommand {
         throw new CommandNotSupportedException("command is not supported");
     }
 
+    // values() copies the array on every call
+    private static final SocksCommand[] VALUES = values();
+
     private final byte representation;
 
 }
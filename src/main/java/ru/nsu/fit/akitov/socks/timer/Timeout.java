@@ -0,0 +1,27 @@
+package ru.nsu.fit.akitov.socks.timer;
+
+public final class Timeout {
+
+    final TimerWheel wheel;
+    final long deadlineTick;
+    final Runnable task;
+    Timeout prev;
+    Timeout next;
+    boolean cancelled;
+
+    Timeout(TimerWheel wheel, long deadlineTick, Runnable task) {
+        this.wheel = wheel;
+        this.deadlineTick = deadlineTick;
+        this.task = task;
+    }
+
+    /**
+     * Keeps the task from running, also when it has already expired together with the task that
+     * cancels it and only waits for its turn.
+     */
+    public void cancel() {
+        cancelled = true;
+        wheel.unlink(this);
+    }
+
+}
@@ -0,0 +1,132 @@
+package ru.nsu.fit.akitov.socks.timer;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel driven by the selector loop of a single reactor. Scheduling and cancelling a
+ * timeout are O(1); timeouts further away than one revolution stay in their bucket until the wheel
+ * comes around to their tick. Not thread-safe.
+ */
+@Log4j2
+public class TimerWheel {
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final List<Timeout> expired = new ArrayList<>();
+    private long currentTick;
+    private long currentTime;
+    private int pending;
+    // no timeout is due before this tick; cancelling may leave it early, which costs one spare wakeup
+    private long nextDeadlineTick = Long.MAX_VALUE;
+
+    public TimerWheel(long tickMillis, int wheelSize, long now) {
+        this.tickMillis = tickMillis;
+        startMillis = now;
+        currentTime = now;
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1) << 1);
+        buckets = new Timeout[size];
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            // sentinels keep unlinking branch-free
+            buckets[i] = new Timeout(this, -1, null);
+        }
+    }
+
+    public Timeout schedule(long delayMillis, Runnable task) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(this, currentTick + ticks, task);
+        Timeout head = buckets[(int) (timeout.deadlineTick & mask)];
+        timeout.prev = head;
+        timeout.next = head.next;
+        if (head.next != null) {
+            head.next.prev = timeout;
+        }
+        head.next = timeout;
+        pending++;
+        nextDeadlineTick = Math.min(nextDeadlineTick, timeout.deadlineTick);
+        return timeout;
+    }
+
+    public void advance(long now) {
+        currentTime = now;
+        long targetTick = (now - startMillis) / tickMillis;
+        if (pending == 0) {
+            currentTick = Math.max(currentTick, targetTick);
+            return;
+        }
+        while (currentTick < targetTick) {
+            currentTick++;
+            Timeout timeout = buckets[(int) (currentTick & mask)].next;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadlineTick <= currentTick) {
+                    unlink(timeout);
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+            for (Timeout expiredTimeout : expired) {
+                if (expiredTimeout.cancelled) {
+                    continue;
+                }
+                try {
+                    expiredTimeout.task.run();
+                } catch (RuntimeException e) {
+                    log.error("timer task failed", e);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * Milliseconds until the earliest pending timeout is due, or 0 if there is none, so that the result
+     * can be passed to a select.
+     */
+    public long millisUntilNextTimeout(long now) {
+        if (pending == 0) {
+            return 0;
+        }
+        if (nextDeadlineTick <= currentTick) {
+            nextDeadlineTick = findNextDeadline();
+        }
+        return Math.max(1, startMillis + nextDeadlineTick * tickMillis - now);
+    }
+
+    public long currentTime() {
+        return currentTime;
+    }
+
+    // walks the wheel from the current tick and stops at the first bucket holding a timeout due in this revolution
+    private long findNextDeadline() {
+        long earliest = Long.MAX_VALUE;
+        for (long tick = currentTick + 1; tick <= currentTick + buckets.length; tick++) {
+            for (Timeout timeout = buckets[(int) (tick & mask)].next; timeout != null; timeout = timeout.next) {
+                earliest = Math.min(earliest, timeout.deadlineTick);
+            }
+            if (earliest <= tick) {
+                return earliest;
+            }
+        }
+        return earliest;
+    }
+
+    void unlink(Timeout timeout) {
+        if (timeout.prev == null) {
+            return;
+        }
+        timeout.prev.next = timeout.next;
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        pending--;
+    }
+
+}
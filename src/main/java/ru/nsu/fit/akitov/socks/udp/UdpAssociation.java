@@ -0,0 +1,59 @@
+package ru.nsu.fit.akitov.socks.udp;
+
+import lombok.Getter;
+import ru.nsu.fit.akitov.socks.timer.Timeout;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * State of one UDP ASSOCIATE: the relay socket, the client it serves and the destinations the client
+ * has sent to. Replies are only relayed from those destinations, and an entry is forgotten once it
+ * has seen no traffic for the NAT timeout.
+ */
+public class UdpAssociation {
+
+    final DatagramChannel channel;
+    final SelectionKey key;
+    final InetAddress clientAddress;
+    final Map<InetSocketAddress, NatEntry> nat = new HashMap<>();
+    // the client's source port, 0 until the client names it in the request or sends its first datagram
+    int clientPort;
+    InetSocketAddress client;
+    // header of the last datagram from the client and where it resolved to, since clients mostly talk to one peer
+    final byte[] lastHeader = new byte[UdpRelay.MAX_HEADER_LENGTH];
+    int lastHeaderLength;
+    InetSocketAddress lastDestination;
+    Timeout sweep;
+    @Getter
+    long lastActivity;
+
+    UdpAssociation(DatagramChannel channel, SelectionKey key, InetAddress clientAddress, int clientPort) {
+        this.channel = channel;
+        this.key = key;
+        this.clientAddress = clientAddress;
+        this.clientPort = clientPort;
+    }
+
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    static class NatEntry {
+
+        // SOCKS UDP header naming the destination, prepended to everything it sends back
+        final byte[] header;
+        long lastUsed;
+
+        NatEntry(byte[] header, long lastUsed) {
+            this.header = header;
+            this.lastUsed = lastUsed;
+        }
+
+    }
+
+}
@@ -0,0 +1,251 @@
+package ru.nsu.fit.akitov.socks.udp;
+
+import lombok.extern.log4j.Log4j2;
+import ru.nsu.fit.akitov.socks.SocksConfiguration;
+import ru.nsu.fit.akitov.socks.dns.DomainNameEntry;
+import ru.nsu.fit.akitov.socks.dns.DomainNameStorage;
+import ru.nsu.fit.akitov.socks.timer.TimerWheel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Datagram side of UDP ASSOCIATE for one reactor. Every association gets its own relay socket on the
+ * reactor's selector; datagrams from the client lose their SOCKS header and go to the destination
+ * it names, datagrams from those destinations get a header prepended and go back to the client.
+ * All datagrams pass through one receive buffer that leaves room in front of the payload, so a reply
+ * header is written in place rather than copying the payload.
+ * <p>
+ * Names in datagram headers are only looked up in the DNS cache. On a miss the datagram is dropped
+ * and the name handed to the reactor, which resolves it under the same admission limit and
+ * deduplication as the names of CONNECT requests.
+ */
+@Log4j2
+public class UdpRelay {
+
+    static final int MAX_HEADER_LENGTH = 4 + 1 + 255 + 2;
+    // the longest header put in front of a reply, the one carrying an IPv6 address
+    private static final int REPLY_HEADER_ROOM = 4 + 16 + 2;
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+    private static final int RECEIVE_BATCH = 64;
+    private static final int MAX_NAT_ENTRIES = 1024;
+
+    private final Selector selector;
+    private final TimerWheel timers;
+    private final DomainNameStorage domainNameStorage;
+    private final Consumer<String> resolver;
+    private final long natTimeoutMillis;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(REPLY_HEADER_ROOM + MAX_DATAGRAM_SIZE);
+
+    public UdpRelay(Selector selector, TimerWheel timers, DomainNameStorage domainNameStorage,
+                    Consumer<String> resolver, long natTimeoutMillis) {
+        this.selector = selector;
+        this.timers = timers;
+        this.domainNameStorage = domainNameStorage;
+        this.resolver = resolver;
+        this.natTimeoutMillis = natTimeoutMillis;
+    }
+
+    public boolean owns(SelectionKey key) {
+        return key.attachment() instanceof UdpAssociation;
+    }
+
+    /**
+     * Opens a relay socket for a client at the given address. The client's source port may be 0 if it
+     * isn't known yet.
+     */
+    public UdpAssociation open(InetAddress clientAddress, int clientPort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(0));
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            UdpAssociation association = new UdpAssociation(channel, key, clientAddress, clientPort);
+            key.attach(association);
+            association.lastActivity = timers.currentTime();
+            association.sweep = timers.schedule(natTimeoutMillis, () -> sweep(association));
+            return association;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public void close(UdpAssociation association) {
+        association.sweep.cancel();
+        try {
+            association.channel.close();
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
+
+    public void handle(SelectionKey key) {
+        UdpAssociation association = (UdpAssociation) key.attachment();
+        for (int i = 0; i < RECEIVE_BATCH; i++) {
+            try {
+                buffer.clear().position(REPLY_HEADER_ROOM);
+                InetSocketAddress source = (InetSocketAddress) association.channel.receive(buffer);
+                if (source == null) {
+                    return;
+                }
+                buffer.flip().position(REPLY_HEADER_ROOM);
+                if (fromClient(association, source)) {
+                    relayToDestination(association, source);
+                } else {
+                    relayToClient(association, source);
+                }
+            } catch (IOException e) {
+                log.error("udp relay error: " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean fromClient(UdpAssociation association, InetSocketAddress source) {
+        return source.getAddress().equals(association.clientAddress)
+                && (association.clientPort == 0 || association.clientPort == source.getPort());
+    }
+
+    private void relayToDestination(UdpAssociation association, InetSocketAddress source) throws IOException {
+        if (association.client == null) {
+            association.client = source;
+            association.clientPort = source.getPort();
+        }
+        int start = buffer.position();
+        int headerLength = headerLength(start);
+        if (headerLength < 0) {
+            return;
+        }
+        InetSocketAddress destination = destination(association, start, headerLength);
+        if (destination == null) {
+            return;
+        }
+        long now = timers.currentTime();
+        UdpAssociation.NatEntry entry = association.nat.get(destination);
+        if (entry == null) {
+            if (association.nat.size() >= MAX_NAT_ENTRIES) {
+                return;
+            }
+            entry = new UdpAssociation.NatEntry(replyHeader(destination), now);
+            association.nat.put(destination, entry);
+        }
+        entry.lastUsed = now;
+        association.lastActivity = now;
+        buffer.position(start + headerLength);
+        association.channel.send(buffer, destination);
+    }
+
+    private void relayToClient(UdpAssociation association, InetSocketAddress source) throws IOException {
+        UdpAssociation.NatEntry entry = association.nat.get(source);
+        if (entry == null || association.client == null) {
+            // only peers the client has talked to may reach it
+            return;
+        }
+        long now = timers.currentTime();
+        entry.lastUsed = now;
+        association.lastActivity = now;
+        int start = REPLY_HEADER_ROOM - entry.header.length;
+        buffer.put(start, entry.header);
+        buffer.position(start);
+        association.channel.send(buffer, association.client);
+    }
+
+    // length of the SOCKS UDP header at the given index, or -1 for a malformed or fragmented datagram
+    private int headerLength(int start) {
+        int available = buffer.limit() - start;
+        if (available < 5 || buffer.get(start + 2) != 0) {
+            return -1;
+        }
+        byte type = buffer.get(start + 3);
+        int length;
+        if (type == SocksConfiguration.ADDRESS_IPv4) {
+            length = 4 + 4 + 2;
+        } else if (type == SocksConfiguration.ADDRESS_IPv6) {
+            length = 4 + 16 + 2;
+        } else if (type == SocksConfiguration.ADDRESS_DOMAIN) {
+            length = 4 + 1 + (buffer.get(start + 4) & 0xFF) + 2;
+        } else {
+            return -1;
+        }
+        return length <= available ? length : -1;
+    }
+
+    private InetSocketAddress destination(UdpAssociation association, int start, int headerLength) throws IOException {
+        int addressStart = start + 3;
+        int addressLength = headerLength - 3;
+        if (association.lastDestination != null && sameAsLast(association, addressStart, addressLength)) {
+            return association.lastDestination;
+        }
+        byte type = buffer.get(addressStart);
+        int port = buffer.getShort(start + headerLength - 2) & 0xFFFF;
+        InetSocketAddress destination;
+        if (type == SocksConfiguration.ADDRESS_DOMAIN) {
+            byte[] name = new byte[buffer.get(start + 4) & 0xFF];
+            buffer.get(start + 5, name);
+            String host = new String(name, StandardCharsets.US_ASCII);
+            Optional<DomainNameEntry> cached = domainNameStorage.getDomainNameEntry(host);
+            if (cached.isEmpty()) {
+                // the datagram is dropped, the client retransmits once the name is cached
+                resolver.accept(host);
+                return null;
+            }
+            if (cached.get().negative()) {
+                return null;
+            }
+            // picked like the first address a connection tries, the choice sticks until the next sweep
+            destination = new InetSocketAddress(cached.get().nextAddress(), port);
+        } else {
+            byte[] raw = new byte[type == SocksConfiguration.ADDRESS_IPv4 ? 4 : 16];
+            buffer.get(start + 4, raw);
+            destination = new InetSocketAddress(InetAddress.getByAddress(raw), port);
+        }
+        buffer.get(addressStart, association.lastHeader, 0, addressLength);
+        association.lastHeaderLength = addressLength;
+        association.lastDestination = destination;
+        return destination;
+    }
+
+    private boolean sameAsLast(UdpAssociation association, int addressStart, int addressLength) {
+        if (association.lastHeaderLength != addressLength) {
+            return false;
+        }
+        for (int i = 0; i < addressLength; i++) {
+            if (association.lastHeader[i] != buffer.get(addressStart + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] replyHeader(InetSocketAddress destination) {
+        byte[] address = destination.getAddress().getAddress();
+        ByteBuffer header = ByteBuffer.allocate(4 + address.length + 2);
+        header.put((byte) 0);
+        header.put((byte) 0);
+        header.put((byte) 0);
+        header.put(address.length == 4 ? SocksConfiguration.ADDRESS_IPv4 : SocksConfiguration.ADDRESS_IPv6);
+        header.put(address);
+        header.putShort((short) destination.getPort());
+        return header.array();
+    }
+
+    private void sweep(UdpAssociation association) {
+        if (!association.channel.isOpen()) {
+            return;
+        }
+        long now = timers.currentTime();
+        association.nat.values().removeIf(entry -> now - entry.lastUsed >= natTimeoutMillis);
+        // cached names may have been re-resolved to other addresses meanwhile
+        association.lastDestination = null;
+        association.sweep = timers.schedule(natTimeoutMillis, () -> sweep(association));
+    }
+
+}
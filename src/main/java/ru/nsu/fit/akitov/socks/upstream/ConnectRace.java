@@ -0,0 +1,97 @@
+package ru.nsu.fit.akitov.socks.upstream;
+
+import lombok.Getter;
+import lombok.Setter;
+import ru.nsu.fit.akitov.socks.timer.Timeout;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connection attempts racing for one client in the spirit of RFC 8305: attempts start one after
+ * another with a short delay, or immediately after the previous one fails, and the first socket to
+ * connect wins. Addresses of a name's second address family may join while the race is running.
+ */
+public class ConnectRace {
+
+    @Getter
+    private final SelectionKey client;
+    private final List<InetSocketAddress> addresses;
+    private final List<Attempt> attempts = new ArrayList<>();
+    @Getter
+    private final long startedAt = System.nanoTime();
+    private int nextAddress;
+    private Timeout nextAttempt;
+    @Getter
+    @Setter
+    private boolean timedOut;
+    // the race isn't lost while the name's other address family may still bring addresses
+    @Getter
+    @Setter
+    private boolean awaitingAddresses;
+
+    public ConnectRace(SelectionKey client, List<InetSocketAddress> addresses) {
+        this.client = client;
+        this.addresses = addresses;
+    }
+
+    public boolean hasNextAddress() {
+        return nextAddress < addresses.size();
+    }
+
+    public InetSocketAddress nextAddress() {
+        return addresses.get(nextAddress++);
+    }
+
+    public void addAddress(InetSocketAddress address) {
+        if (!addresses.contains(address)) {
+            addresses.add(address);
+        }
+    }
+
+    public void scheduleNextAttempt(Timeout nextAttempt) {
+        cancelNextAttempt();
+        this.nextAttempt = nextAttempt;
+    }
+
+    public void addAttempt(SelectionKey key, Timeout timeout, Timeout nextAttempt) {
+        attempts.add(new Attempt(key, timeout));
+        cancelNextAttempt();
+        this.nextAttempt = nextAttempt;
+    }
+
+    public void removeAttempt(SelectionKey key) {
+        attempts.removeIf(attempt -> {
+            if (attempt.key != key) {
+                return false;
+            }
+            attempt.timeout.cancel();
+            return true;
+        });
+    }
+
+    public boolean inProgress() {
+        return !attempts.isEmpty();
+    }
+
+    public List<SelectionKey> attemptKeys() {
+        List<SelectionKey> keys = new ArrayList<>(attempts.size());
+        for (Attempt attempt : attempts) {
+            keys.add(attempt.key);
+        }
+        return keys;
+    }
+
+    public void cancelNextAttempt() {
+        if (nextAttempt != null) {
+            nextAttempt.cancel();
+            nextAttempt = null;
+        }
+    }
+
+    private record Attempt(SelectionKey key, Timeout timeout) {
+    }
+
+}
@@ -0,0 +1,299 @@
+package ru.nsu.fit.akitov.socks.upstream;
+
+import lombok.extern.log4j.Log4j2;
+import org.xbill.DNS.Address;
+import ru.nsu.fit.akitov.socks.SocketOptions;
+import ru.nsu.fit.akitov.socks.dns.DnsResolver;
+import ru.nsu.fit.akitov.socks.dns.DomainNameEntry;
+import ru.nsu.fit.akitov.socks.dns.DomainNameStorage;
+import ru.nsu.fit.akitov.socks.timer.Timeout;
+import ru.nsu.fit.akitov.socks.timer.TimerWheel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+
+/**
+ * Keeps a few idle, already connected sockets to frequently used destinations. A pool belongs to one
+ * reactor and registers its sockets on the reactor's selector, so a taken socket keeps its selection
+ * key and can be attached to a tunnel right away.
+ * <p>
+ * Destinations are kept as unresolved host and port. Names are re-resolved through the DNS cache on
+ * every maintenance round, so the pool follows their records as they change, and sockets to addresses
+ * a name no longer has are closed.
+ * <p>
+ * Configured sizes and the auto threshold are totals for the server, every reactor keeps its share.
+ * Destinations whose server speaks first (SSH, SMTP, FTP) aren't pooled: their greeting would arrive
+ * while the socket is idle and couldn't be told apart from a closing upstream.
+ */
+@Log4j2
+public class WarmConnectionPool {
+
+    private static final long REQUEST_WINDOW_MILLIS = 10_000;
+
+    private final Selector selector;
+    private final TimerWheel timers;
+    private final long connectTimeoutMillis;
+    private final Map<InetSocketAddress, Integer> configuredTargets = new HashMap<>();
+    private final long maxIdleMillis;
+    private final int autoThreshold;
+    private final int autoSize;
+    private final Map<InetSocketAddress, Integer> targets = new HashMap<>();
+    private final Map<InetSocketAddress, Deque<WarmConnection>> idle = new HashMap<>();
+    private final Map<InetSocketAddress, Integer> connecting = new HashMap<>();
+    private final Map<InetSocketAddress, Integer> requests = new HashMap<>();
+    private final Set<InetSocketAddress> speakingFirst = new HashSet<>();
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+    private final SocketOptions socketOptions;
+    private final DomainNameStorage domainNameStorage;
+    private final DnsResolver dnsResolver;
+    private long windowEnd;
+    private int nextAddress;
+
+    public WarmConnectionPool(Selector selector, TimerWheel timers, Map<InetSocketAddress, Integer> configuredTargets,
+                              long maxIdleMillis, int autoThreshold, int autoSize, int reactors,
+                              long connectTimeoutMillis, SocketOptions socketOptions,
+                              DomainNameStorage domainNameStorage, DnsResolver dnsResolver) {
+        this.selector = selector;
+        this.timers = timers;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.socketOptions = socketOptions;
+        this.domainNameStorage = domainNameStorage;
+        this.dnsResolver = dnsResolver;
+        this.maxIdleMillis = maxIdleMillis;
+        // clients are spread over the reactors, and so are their requests and the sockets kept for them
+        this.autoThreshold = share(autoThreshold, reactors);
+        this.autoSize = share(autoSize, reactors);
+        configuredTargets.forEach((address, size) -> this.configuredTargets.put(target(address.getHostString(),
+                address.getPort()), share(size, reactors)));
+        targets.putAll(this.configuredTargets);
+    }
+
+    private static int share(int total, int reactors) {
+        return total <= 0 ? total : Math.max(1, (total + reactors - 1) / Math.max(1, reactors));
+    }
+
+    /**
+     * Key of a destination in the pool. Address literals are brought to one form, so a configured
+     * destination and a request naming it by address meet; names are compared ignoring case.
+     */
+    public static InetSocketAddress target(String host, int port) {
+        try {
+            return InetSocketAddress.createUnresolved(Address.getByAddress(host).getHostAddress(), port);
+        } catch (UnknownHostException e) {
+            return InetSocketAddress.createUnresolved(host.toLowerCase(Locale.ROOT), port);
+        }
+    }
+
+    public boolean owns(SelectionKey key) {
+        return key.attachment() instanceof WarmConnection;
+    }
+
+    public void recordRequest(InetSocketAddress target) {
+        if (autoThreshold > 0) {
+            requests.merge(target, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Hands out an idle socket to the destination that is connected to one of the addresses it
+     * currently resolves to, or null if there is none.
+     */
+    public SelectionKey take(InetSocketAddress target, List<InetSocketAddress> addresses) {
+        Deque<WarmConnection> connections = idle.get(target);
+        WarmConnection connection;
+        while (connections != null && (connection = connections.poll()) != null) {
+            if (!addresses.contains(connection.address)) {
+                close(connection);
+                continue;
+            }
+            int read = probe(connection);
+            if (read == 0) {
+                InetSocketAddress address = connection.address;
+                log.debug(() -> "using warm connection to " + address);
+                connection.key.interestOps(0);
+                connection.key.attach(null);
+                return connection.key;
+            }
+            close(connection);
+            if (read > 0) {
+                // the probe has eaten the first byte of a greeting, the client gets a socket of its own
+                speaksFirst(connection.target);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public void handle(SelectionKey key) {
+        WarmConnection connection = (WarmConnection) key.attachment();
+        if (key.isConnectable()) {
+            connecting.merge(connection.target, -1, Integer::sum);
+            connection.timeout.cancel();
+            try {
+                connection.channel.finishConnect();
+            } catch (IOException e) {
+                log.error("couldn't warm up connection to " + connection.address + ": " + e.getMessage());
+                close(connection);
+                return;
+            }
+            connection.idleSince = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ);
+            idle.computeIfAbsent(connection.target, target -> new ArrayDeque<>()).add(connection);
+        } else if (key.isReadable()) {
+            // an idle upstream is either closing or greeting, and a greeting can't be handed to a client later
+            idle.get(connection.target).remove(connection);
+            int read = probe(connection);
+            close(connection);
+            if (read > 0) {
+                speaksFirst(connection.target);
+            }
+        }
+    }
+
+    private void speaksFirst(InetSocketAddress target) {
+        if (!speakingFirst.add(target)) {
+            return;
+        }
+        log.info("not pre-connecting to " + target + ", its server speaks first");
+        targets.remove(target);
+        Deque<WarmConnection> connections = idle.remove(target);
+        if (connections != null) {
+            connections.forEach(this::close);
+        }
+    }
+
+    private void timeOut(WarmConnection connection) {
+        log.debug(() -> "warming up connection to " + connection.address + " timed out");
+        connecting.merge(connection.target, -1, Integer::sum);
+        close(connection);
+    }
+
+    public void maintain(long now) {
+        if (autoThreshold > 0 && now >= windowEnd) {
+            windowEnd = now + REQUEST_WINDOW_MILLIS;
+            targets.clear();
+            requests.forEach((target, count) -> {
+                if (count >= autoThreshold) {
+                    targets.put(target, autoSize);
+                }
+            });
+            targets.putAll(configuredTargets);
+            targets.keySet().removeAll(speakingFirst);
+            requests.clear();
+        }
+        Map<InetSocketAddress, List<InetSocketAddress>> resolved = new HashMap<>();
+        for (InetSocketAddress target : targets.keySet()) {
+            resolved.put(target, addressesOf(target, now));
+        }
+        for (Deque<WarmConnection> connections : idle.values()) {
+            Iterator<WarmConnection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                WarmConnection connection = iterator.next();
+                List<InetSocketAddress> addresses = resolved.get(connection.target);
+                // dropped destinations lose their sockets, a name without a current answer keeps them until they idle out
+                if (now - connection.idleSince >= maxIdleMillis || addresses == null
+                        || (!addresses.isEmpty() && !addresses.contains(connection.address))) {
+                    iterator.remove();
+                    close(connection);
+                }
+            }
+        }
+        idle.values().removeIf(Deque::isEmpty);
+        targets.forEach((target, size) -> topUp(target, size, resolved.get(target)));
+    }
+
+    // an empty list stands for a name that is being resolved or failed to resolve
+    private List<InetSocketAddress> addressesOf(InetSocketAddress target, long now) {
+        String host = target.getHostString();
+        try {
+            return List.of(new InetSocketAddress(Address.getByAddress(host), target.getPort()));
+        } catch (UnknownHostException e) {
+            // not an address literal
+        }
+        Optional<DomainNameEntry> cached = domainNameStorage.getDomainNameEntry(host);
+        if (cached.isEmpty()) {
+            dnsResolver.resolve(host);
+            return List.of();
+        }
+        if (cached.get().negative()) {
+            return List.of();
+        }
+        if (cached.get().startRefresh(now)) {
+            dnsResolver.resolve(host);
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>(cached.get().addresses().size());
+        for (InetAddress address : cached.get().addresses()) {
+            addresses.add(new InetSocketAddress(address, target.getPort()));
+        }
+        return addresses;
+    }
+
+    private void topUp(InetSocketAddress target, int size, List<InetSocketAddress> addresses) {
+        Deque<WarmConnection> connections = idle.get(target);
+        int available = (connections == null ? 0 : connections.size()) + connecting.getOrDefault(target, 0);
+        for (int i = available; i < size && !addresses.isEmpty(); i++) {
+            // sockets are spread over the addresses like the connections of clients are
+            InetSocketAddress address = addresses.get(Math.floorMod(nextAddress++, addresses.size()));
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                socketOptions.apply(channel);
+                channel.connect(address);
+                WarmConnection connection = new WarmConnection(target, address, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                connection.timeout = timers.schedule(connectTimeoutMillis, () -> timeOut(connection));
+                connecting.merge(target, 1, Integer::sum);
+            } catch (IOException e) {
+                log.error("couldn't warm up connection to " + address + ": " + e.getMessage());
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    // 0 for a socket that is still quiet, -1 for one that is closed or broken
+    private int probe(WarmConnection connection) {
+        try {
+            return connection.channel.read(probe.clear());
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private void close(WarmConnection connection) {
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
+
+    private static class WarmConnection {
+        private final InetSocketAddress target;
+        private final InetSocketAddress address;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private Timeout timeout;
+        private long idleSince;
+
+        private WarmConnection(InetSocketAddress target, InetSocketAddress address, SocketChannel channel) {
+            this.target = target;
+            this.address = address;
+            this.channel = channel;
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+package ru.nsu.fit.akitov.socks.dns;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+import ru.nsu.fit.akitov.socks.timer.TimerWheel;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DnsResolverTest {
+
+    private static final String NAME = "dual.example";
+    private static final long TTL_SECONDS = 300;
+
+    private final Listener listener = new Listener();
+    private DatagramSocket server;
+    private Selector selector;
+    private TimerWheel timers;
+    private DnsResolver resolver;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(5000);
+        selector = Selector.open();
+        timers = new TimerWheel(10, 64, System.currentTimeMillis());
+        resolver = new DnsResolver(selector, timers,
+                List.of(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort())), 2000, 1,
+                listener);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        resolver.close();
+        selector.close();
+        server.close();
+    }
+
+    @Test
+    void earlyAaaaAnswerKeepsTheAQueryRunning() throws IOException {
+        resolver.resolve(NAME);
+        Map<Integer, Query> queries = receiveQueries();
+
+        answer(queries.get(Type.AAAA));
+        pumpUntil(() -> listener.resolved != null);
+        assertEquals(List.of(ipv6()), listener.resolved);
+        assertFalse(listener.complete);
+        assertNull(listener.completed);
+
+        answer(queries.get(Type.A));
+        pumpUntil(() -> listener.completed != null);
+        assertEquals(List.of(ipv6(), ipv4()), listener.completed);
+        assertEquals(TTL_SECONDS, listener.ttl);
+    }
+
+    @Test
+    void lateAaaaAnswerFollowsTheResolutionDelay() throws IOException {
+        resolver.resolve(NAME);
+        Map<Integer, Query> queries = receiveQueries();
+
+        answer(queries.get(Type.A));
+        pumpUntil(() -> listener.resolved != null);
+        assertEquals(List.of(ipv4()), listener.resolved);
+        assertFalse(listener.complete);
+
+        answer(queries.get(Type.AAAA));
+        pumpUntil(() -> listener.completed != null);
+        assertEquals(List.of(ipv6(), ipv4()), listener.completed);
+    }
+
+    @Test
+    void answersArrivingTogetherAreDeliveredOnce() throws IOException {
+        resolver.resolve(NAME);
+        Map<Integer, Query> queries = receiveQueries();
+
+        answer(queries.get(Type.A));
+        answer(queries.get(Type.AAAA));
+        pumpUntil(() -> listener.resolved != null);
+        assertEquals(List.of(ipv6(), ipv4()), listener.resolved);
+        assertTrue(listener.complete);
+        assertNull(listener.completed);
+    }
+
+    private Map<Integer, Query> receiveQueries() throws IOException {
+        Map<Integer, Query> queries = new HashMap<>();
+        byte[] buffer = new byte[512];
+        while (queries.size() < 2) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            server.receive(packet);
+            Message message = new Message(Arrays.copyOf(buffer, packet.getLength()));
+            queries.put(message.getQuestion().getType(), new Query(message, packet.getSocketAddress()));
+        }
+        return queries;
+    }
+
+    private void answer(Query query) throws IOException {
+        Record question = query.message.getQuestion();
+        Message response = new Message(query.message.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.RA);
+        response.addRecord(question, Section.QUESTION);
+        if (question.getType() == Type.A) {
+            response.addRecord(new ARecord(question.getName(), DClass.IN, TTL_SECONDS, ipv4()), Section.ANSWER);
+        } else {
+            response.addRecord(new AAAARecord(question.getName(), DClass.IN, TTL_SECONDS, ipv6()), Section.ANSWER);
+        }
+        byte[] wire = response.toWire();
+        server.send(new DatagramPacket(wire, wire.length, query.source));
+    }
+
+    private void pumpUntil(BooleanSupplier done) throws IOException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!done.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "resolver didn't call back in time");
+            selector.select(10);
+            timers.advance(System.currentTimeMillis());
+            for (SelectionKey key : selector.selectedKeys()) {
+                resolver.handle(key);
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private static InetAddress ipv4() throws IOException {
+        return InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, 1});
+    }
+
+    private static InetAddress ipv6() throws IOException {
+        return InetAddress.getByName("2001:db8::1");
+    }
+
+    private record Query(Message message, SocketAddress source) {
+    }
+
+    private static class Listener implements ResolveListener {
+        private List<InetAddress> resolved;
+        private boolean complete;
+        private List<InetAddress> completed;
+        private long ttl;
+
+        @Override
+        public void onResolved(String name, List<InetAddress> addresses, long ttlSeconds, boolean complete) {
+            assertNull(resolved, "addresses were handed out twice");
+            resolved = addresses;
+            this.complete = complete;
+            ttl = ttlSeconds;
+        }
+
+        @Override
+        public void onCompleted(String name, List<InetAddress> addresses, long ttlSeconds) {
+            completed = addresses;
+            ttl = ttlSeconds;
+        }
+
+        @Override
+        public void onFailed(String name, int rcode) {
+            throw new AssertionError("lookup of " + name + " failed with rcode " + rcode);
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package ru.nsu.fit.akitov.socks.dns;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.Rcode;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DomainNameStorageTest {
+
+    private static final String NAME = "host.example";
+
+    private DomainNameStorage storage;
+
+    @AfterEach
+    void tearDown() {
+        storage.close();
+    }
+
+    @Test
+    void transientFailureKeepsServablePositiveEntry() throws IOException {
+        storage = storage(100, Duration.ZERO);
+        storage.putDomainNameAddresses(NAME, addresses(), 60);
+        DomainNameEntry cached = storage.getDomainNameEntry(NAME).orElseThrow();
+
+        storage.putNegative(NAME, Rcode.SERVFAIL);
+
+        DomainNameEntry kept = storage.getDomainNameEntry(NAME).orElseThrow();
+        assertFalse(kept.negative());
+        assertEquals(addresses(), kept.addresses());
+        assertEquals(cached.expiresAt(), kept.expiresAt());
+        // the failed refresh is not retried by the very next hit
+        assertFalse(kept.startRefresh(System.currentTimeMillis()));
+    }
+
+    @Test
+    void transientFailureKeepsStaleEntryWithinGrace() throws IOException {
+        storage = storage(100, Duration.ofMinutes(1));
+        storage.putDomainNameAddresses(NAME, addresses(), 0);
+
+        storage.putNegative(NAME, Rcode.SERVFAIL);
+
+        DomainNameEntry kept = storage.getDomainNameEntry(NAME).orElseThrow();
+        assertFalse(kept.negative());
+        assertTrue(kept.expired(System.currentTimeMillis()));
+        assertEquals(1, storage.getStaleHits());
+    }
+
+    @Test
+    void transientFailureReplacesEntryPastGrace() throws IOException {
+        storage = storage(100, Duration.ZERO);
+        storage.putDomainNameAddresses(NAME, addresses(), 0);
+
+        storage.putNegative(NAME, Rcode.SERVFAIL);
+
+        DomainNameEntry negative = storage.getDomainNameEntry(NAME).orElseThrow();
+        assertTrue(negative.negative());
+        assertEquals(Rcode.SERVFAIL, negative.rcode());
+    }
+
+    @Test
+    void authoritativeDenialReplacesPositiveEntry() throws IOException {
+        storage = storage(100, Duration.ofMinutes(1));
+        storage.putDomainNameAddresses(NAME, addresses(), 60);
+
+        storage.putNegative(NAME, Rcode.NXDOMAIN);
+
+        DomainNameEntry negative = storage.getDomainNameEntry(NAME).orElseThrow();
+        assertTrue(negative.negative());
+        assertEquals(Rcode.NXDOMAIN, negative.rcode());
+    }
+
+    @Test
+    void answerReplacesNegativeEntry() throws IOException {
+        storage = storage(100, Duration.ZERO);
+        storage.putNegative(NAME, Rcode.NXDOMAIN);
+
+        storage.putDomainNameAddresses(NAME, addresses(), 60);
+
+        DomainNameEntry positive = storage.getDomainNameEntry(NAME).orElseThrow();
+        assertFalse(positive.negative());
+        assertEquals(addresses(), positive.addresses());
+    }
+
+    @Test
+    void missIsCounted() {
+        storage = storage(100, Duration.ZERO);
+
+        Optional<DomainNameEntry> entry = storage.getDomainNameEntry(NAME);
+
+        assertTrue(entry.isEmpty());
+        assertEquals(1, storage.getMisses());
+    }
+
+    @Test
+    void sizeStaysWithinCapacity() throws IOException {
+        storage = storage(64, Duration.ZERO);
+        for (int i = 0; i < 1000; i++) {
+            storage.putDomainNameAddresses("host" + i + ".example", addresses(), 60);
+        }
+
+        // every shard rounds its share up, so the bound is loose by less than one entry per shard
+        assertTrue(storage.size() <= 64 + Runtime.getRuntime().availableProcessors() * 4);
+        assertTrue(storage.getEvictions() >= 1000 - storage.size());
+    }
+
+    private static DomainNameStorage storage(int capacity, Duration staleGrace) {
+        return new DomainNameStorage(capacity, Duration.ZERO, Duration.ofHours(1), Duration.ofSeconds(30), 0.8,
+                staleGrace, Duration.ofHours(1));
+    }
+
+    private static List<InetAddress> addresses() throws IOException {
+        return List.of(InetAddress.getByName("192.0.2.1"), InetAddress.getByName("2001:db8::1"));
+    }
+
+}
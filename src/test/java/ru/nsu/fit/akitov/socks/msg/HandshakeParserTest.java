@@ -0,0 +1,204 @@
+package ru.nsu.fit.akitov.socks.msg;
+
+import org.junit.jupiter.api.Test;
+import ru.nsu.fit.akitov.socks.msg.auth.AuthMethod;
+import ru.nsu.fit.akitov.socks.msg.connection.AddressType;
+import ru.nsu.fit.akitov.socks.msg.connection.ConnectionRequest;
+import ru.nsu.fit.akitov.socks.msg.connection.SocksCommand;
+import ru.nsu.fit.akitov.socks.msg.exception.AddressNotSupportedException;
+import ru.nsu.fit.akitov.socks.msg.exception.CommandNotSupportedException;
+import ru.nsu.fit.akitov.socks.msg.exception.SocksException;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HandshakeParserTest {
+
+    private static final byte[] GREETING = {0x05, 0x02, 0x00, 0x02};
+    private static final byte[] IPV4_CONNECT = {0x05, 0x01, 0x00, 0x01, (byte) 192, 0, 2, 1, 0x01, (byte) 0xBB};
+    private static final byte[] IPV6_CONNECT = {0x05, 0x01, 0x00, 0x04,
+            0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x01, 0x00, 0x50};
+
+    private final HandshakeParser parser = new HandshakeParser();
+
+    @Test
+    void parsesIpv4RequestByteByByte() throws SocksException, UnknownHostException {
+        assertEquals(List.of(HandshakeParser.Result.GREETING, HandshakeParser.Result.REQUEST),
+                feedByteByByte(concat(GREETING, IPV4_CONNECT)));
+
+        ConnectionRequest request = parser.request();
+        assertEquals(SocksCommand.TCP_CONNECT, request.command());
+        assertEquals(AddressType.IPv4, request.addressType());
+        assertEquals("192.0.2.1", request.getHostName());
+        assertEquals(443, request.port());
+        assertTrue(parser.isOffered(AuthMethod.NO_AUTH));
+        assertTrue(parser.isOffered(AuthMethod.USERNAME_PASSWORD));
+    }
+
+    @Test
+    void parsesIpv6RequestByteByByte() throws SocksException, UnknownHostException {
+        feedByteByByte(concat(GREETING, IPV6_CONNECT));
+
+        ConnectionRequest request = parser.request();
+        assertEquals(AddressType.IPv6, request.addressType());
+        assertEquals("2001:db8:0:0:0:0:0:1", request.getHostName());
+        assertEquals(80, request.port());
+    }
+
+    @Test
+    void parsesDomainRequestByteByByte() throws SocksException, UnknownHostException {
+        feedByteByByte(concat(GREETING, domainRequest(SocksCommand.UDP_ASSOCIATE, "www.example.com", 8080)));
+
+        ConnectionRequest request = parser.request();
+        assertEquals(SocksCommand.UDP_ASSOCIATE, request.command());
+        assertEquals(AddressType.DOMAIN, request.addressType());
+        assertEquals("www.example.com", request.getHostName());
+        assertEquals(8080, request.port());
+    }
+
+    @Test
+    void parsesCredentialsByteByByte() throws SocksException, UnknownHostException {
+        assertEquals(List.of(HandshakeParser.Result.GREETING), feedByteByByte(GREETING));
+        parser.expectCredentials();
+
+        assertEquals(List.of(HandshakeParser.Result.CREDENTIALS, HandshakeParser.Result.REQUEST),
+                feedByteByByte(concat(credentials("alice", "secret"), IPV4_CONNECT)));
+
+        assertEquals("alice", parser.username());
+        assertArrayEquals("secret".getBytes(StandardCharsets.UTF_8), parser.takePassword());
+        assertEquals("192.0.2.1", parser.request().getHostName());
+    }
+
+    @Test
+    void leavesPipelinedBytesInTheBuffer() throws SocksException {
+        byte[] payload = "GET / HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.wrap(concat(GREETING, IPV4_CONNECT, payload));
+
+        assertEquals(HandshakeParser.Result.GREETING, parser.parse(buffer));
+        assertEquals(HandshakeParser.Result.REQUEST, parser.parse(buffer));
+        assertEquals(payload.length, buffer.remaining());
+        assertEquals(HandshakeParser.Result.NEED_MORE, parser.parse(buffer));
+        assertEquals(payload.length, buffer.remaining());
+    }
+
+    @Test
+    void greetingWithoutMethodsIsComplete() throws SocksException {
+        assertEquals(List.of(HandshakeParser.Result.GREETING), feedByteByByte(new byte[]{0x05, 0x00}));
+        assertTrue(parser.isGreetingDone());
+        assertFalse(parser.isOffered(AuthMethod.NO_AUTH));
+    }
+
+    @Test
+    void resetParserParsesTheNextHandshake() throws SocksException, UnknownHostException {
+        feedByteByByte(concat(GREETING, domainRequest(SocksCommand.TCP_CONNECT, "first.example", 443)));
+        parser.reset();
+
+        feedByteByByte(concat(new byte[]{0x05, 0x01, 0x00}, IPV4_CONNECT));
+
+        ConnectionRequest request = parser.request();
+        assertEquals(AddressType.IPv4, request.addressType());
+        assertEquals("192.0.2.1", request.getHostName());
+        assertEquals(443, request.port());
+        assertFalse(parser.isOffered(AuthMethod.USERNAME_PASSWORD));
+    }
+
+    @Test
+    void rejectsOtherSocksVersions() {
+        assertThrows(SocksException.class, () -> feedByteByByte(new byte[]{0x04, 0x01, 0x00}));
+        assertFalse(parser.isGreetingDone());
+    }
+
+    @Test
+    void rejectsUnknownCommand() {
+        byte[] request = IPV4_CONNECT.clone();
+        request[1] = 0x09;
+
+        assertThrows(CommandNotSupportedException.class, () -> feedByteByByte(concat(GREETING, request)));
+        assertTrue(parser.isGreetingDone());
+    }
+
+    @Test
+    void rejectsNonZeroReservedByte() {
+        byte[] request = IPV4_CONNECT.clone();
+        request[2] = 0x01;
+
+        assertThrows(SocksException.class, () -> feedByteByByte(concat(GREETING, request)));
+    }
+
+    @Test
+    void rejectsUnknownAddressType() {
+        byte[] request = IPV4_CONNECT.clone();
+        request[3] = 0x02;
+
+        assertThrows(AddressNotSupportedException.class, () -> feedByteByByte(concat(GREETING, request)));
+    }
+
+    @Test
+    void rejectsEmptyDomainName() {
+        assertThrows(AddressNotSupportedException.class,
+                () -> feedByteByByte(concat(GREETING, domainRequest(SocksCommand.TCP_CONNECT, "", 80))));
+    }
+
+    @Test
+    void rejectsOtherAuthVersions() {
+        assertThrows(SocksException.class, () -> {
+            feedByteByByte(GREETING);
+            parser.expectCredentials();
+            feedByteByByte(new byte[]{0x02, 0x01, 'a', 0x01, 'b'});
+        });
+    }
+
+    // every byte arrives in a segment of its own, like from a client writing unbuffered
+    private List<HandshakeParser.Result> feedByteByByte(byte[] bytes) throws SocksException {
+        List<HandshakeParser.Result> results = new ArrayList<>();
+        ByteBuffer single = ByteBuffer.allocate(1);
+        for (byte b : bytes) {
+            single.clear();
+            single.put(b).flip();
+            HandshakeParser.Result result = parser.parse(single);
+            assertFalse(single.hasRemaining());
+            if (result != HandshakeParser.Result.NEED_MORE) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    private static byte[] domainRequest(SocksCommand command, String host, int port) {
+        byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer request = ByteBuffer.allocate(4 + 1 + name.length + 2);
+        request.put((byte) 0x05).put(command.getRepresentation()).put((byte) 0x00).put((byte) 0x03);
+        request.put((byte) name.length).put(name).putShort((short) port);
+        return request.array();
+    }
+
+    private static byte[] credentials(String username, String password) {
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        byte[] pass = password.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer message = ByteBuffer.allocate(3 + user.length + pass.length);
+        message.put((byte) 0x01).put((byte) user.length).put(user).put((byte) pass.length).put(pass);
+        return message.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer result = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            result.put(part);
+        }
+        return result.array();
+    }
+
+}
@@ -0,0 +1,54 @@
+package ru.nsu.fit.akitov.socks.timer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TimerWheelTest {
+
+    private static final long START = 1_000_000;
+
+    @Test
+    void taskCancelledByAnotherExpiringInTheSameTickDoesNotRun() {
+        TimerWheel timers = new TimerWheel(10, 8, START);
+        List<String> ran = new ArrayList<>();
+        Timeout[] second = new Timeout[1];
+        // a bucket runs its latest timeout first
+        second[0] = timers.schedule(10, () -> ran.add("second"));
+        timers.schedule(10, () -> {
+            ran.add("first");
+            second[0].cancel();
+        });
+
+        timers.advance(START + 10);
+
+        assertEquals(List.of("first"), ran);
+    }
+
+    @Test
+    void waitsUntilTheEarliestTimeout() {
+        TimerWheel timers = new TimerWheel(10, 8, START);
+        timers.schedule(500, () -> {
+        });
+        timers.schedule(30, () -> {
+        });
+
+        assertEquals(30, timers.millisUntilNextTimeout(START));
+        timers.advance(START + 30);
+        assertEquals(470, timers.millisUntilNextTimeout(START + 30));
+    }
+
+    @Test
+    void waitsForeverWithoutTimeouts() {
+        TimerWheel timers = new TimerWheel(10, 8, START);
+        Timeout timeout = timers.schedule(30, () -> {
+        });
+        timeout.cancel();
+
+        assertEquals(0, timers.millisUntilNextTimeout(START));
+    }
+
+}